@@ -0,0 +1,113 @@
+import benchmarks.Targets;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.ml.CvSVM;
+
+
+/**
+ * Implementation of benchmark targets, it has to be in the default package
+ * together with the main project.
+ */
+public class BenchmarkTargets implements Targets {
+
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    @Override
+    public Object recognizer(int paddHeightMax, int paddWidthMax) {
+        RecognizerConfig config = RecognizerConfig.builder().padding(paddHeightMax, paddWidthMax).build();
+        return new Recognizer(config);
+    }
+
+    @Override
+    public Object hogExtractor(int height, int width, int sizeCell, int sizeBlock, int hogBins) {
+        return new HogExtractor(height, width, sizeCell, sizeBlock, hogBins, RecognizerConfig.DEFAULT.maxDeg);
+    }
+
+    @Override
+    public void hog(Object extractor, Mat img, float[] dst) {
+        ((HogExtractor) extractor).compute(img, dst, 0);
+    }
+
+    @Override
+    public int hogLength(Object extractor) {
+        return ((HogExtractor) extractor).length();
+    }
+
+    @Override
+    public Mat maskFilter(Object recognizer, Mat img, Mat mask, int nbins, int maxValue) {
+        return ((Recognizer) recognizer).maskFilter(img, mask, nbins, maxValue);
+    }
+
+    @Override
+    public Point detectHead(Object recognizer, Mat img, int nbins, int maxValue) {
+        return ((Recognizer) recognizer).detectHead(img, nbins, maxValue);
+    }
+
+    @Override
+    public List<?> detect(Object recognizer, Mat img, int nbins, int maxValue) {
+        return ((Recognizer) recognizer).detect(img, nbins, maxValue);
+    }
+
+    @Override
+    public List<Body> findBodies(Object recognizer, Mat img, int levels) {
+        Recognizer r = (Recognizer) recognizer;
+        List<Detection> detections = levels == 0 ? r.findBodies(img) : new PyramidDetector(r, levels).findBodies(img);
+        List<Body> bodies = new ArrayList<>();
+
+        for (Detection d : detections) {
+            bodies.add(new Body(d.rect, d.area));
+        }
+
+        return bodies;
+    }
+
+    @Override
+    public void train(Object recognizer, Mat data, Mat labels) {
+        ((Recognizer) recognizer).orientationSVM.train(data, labels);
+    }
+
+    @Override
+    public Object predictor(Object recognizer, String engine) throws IOException {
+        CvSVM svm = ((Recognizer) recognizer).orientationSVM;
+
+        switch (engine) {
+            case "native":
+                return new NativeSvm(svm);
+            case "java":
+                File file = File.createTempFile("bench", ".xml");
+                file.deleteOnExit();
+                svm.save(file.getPath());
+                return SvmEngine.load(file.getPath());
+            default:
+                throw new IllegalArgumentException("unknown engine " + engine);
+        }
+    }
+
+    @Override
+    public float predict(Object predictor, Mat sample) {
+        return ((SvmPredictor) predictor).predict(sample, false);
+    }
+
+    @Override
+    public float[] predictBatch(Object predictor, Mat samples, float[] out) {
+        ((SvmPredictor) predictor).predictBatch(samples, out, 0, false);
+        return out;
+    }
+
+    @Override
+    public void createModel(Object recognizer, String dir) throws IOException {
+        ((Recognizer) recognizer).createModel(dir);
+    }
+
+    @Override
+    public Mat readCsv(String filename) throws IOException {
+        return new DataHandler().readCsv(filename);
+    }
+}
@@ -0,0 +1,78 @@
+package benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+
+/**
+ * Processing of whole frame: background filtering, head and body detection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameBenchmark {
+
+    // height x width of frame
+    @Param({"240x320", "720x1280"})
+    public String frameSize;
+
+    @Param({"1", "8"})
+    public int blobs;
+
+    // radius of blobs, bodies have to fit to padded window
+    @Param({"15", "30"})
+    public int blobSize;
+
+    static final int nbins = 20;
+    static final int maxValue = 255;
+
+    private Targets targets;
+    private Object recognizer;
+    private Mat frame;
+    private Mat mask;
+    private Mat filtered;
+
+    @Setup
+    public void setup() {
+        String[] size = frameSize.split("x");
+        int height = Integer.parseInt(size[0]);
+        int width = Integer.parseInt(size[1]);
+
+        targets = Targets.get();
+        recognizer = targets.recognizer(100, 110);
+        frame = Synthetic.frame(height, width, blobs, blobSize, 7);
+        mask = Synthetic.background(height, width, 8);
+        filtered = targets.maskFilter(recognizer, frame, mask, nbins, maxValue);
+    }
+
+    @Benchmark
+    public Mat maskFilter() {
+        return targets.maskFilter(recognizer, frame, mask, nbins, maxValue);
+    }
+
+    @Benchmark
+    public Point detectHead() {
+        return targets.detectHead(recognizer, frame, nbins, maxValue);
+    }
+
+    @Benchmark
+    public List<?> detect() {
+        return targets.detect(recognizer, filtered, nbins, maxValue);
+    }
+}
@@ -0,0 +1,64 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+
+
+/**
+ * HOG features of one padded window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HogBenchmark {
+
+    // paddHeightMax x paddWidthMax
+    @Param({"100x110", "71x71"})
+    public String window;
+
+    @Param({"6", "8"})
+    public int sizeCell;
+
+    @Param({"2", "3"})
+    public int sizeBlock;
+
+    @Param({"9"})
+    public int hogBins;
+
+    private Targets targets;
+    private Object extractor;
+    private Mat img;
+    private float[] features;
+
+    @Setup
+    public void setup() {
+        String[] size = window.split("x");
+        int height = Integer.parseInt(size[0]);
+        int width = Integer.parseInt(size[1]);
+
+        targets = Targets.get();
+        extractor = targets.hogExtractor(height, width, sizeCell, sizeBlock, hogBins);
+        img = Synthetic.frame(height, width, 1, Math.min(height, width) / 3, 42);
+        features = new float[targets.hogLength(extractor)];
+    }
+
+    @Benchmark
+    public float[] hog() {
+        targets.hog(extractor, img, features);
+        return features;
+    }
+}
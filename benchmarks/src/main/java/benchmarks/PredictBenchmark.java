@@ -0,0 +1,71 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+
+
+/**
+ * Prediction by small SVM trained on synthetic features, by OpenCV and by the
+ * pure Java engine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PredictBenchmark {
+
+    // lengths of HOG features of gender and orientation windows
+    @Param({"729", "2430"})
+    public int features;
+
+    @Param({"1", "64", "1024"})
+    public int batch;
+
+    @Param({"native", "java"})
+    public String engine;
+
+    private Targets targets;
+    private Object predictor;
+    private Mat sample;
+    private Mat samples;
+    private float[] out;
+
+    @Setup
+    public void setup() throws IOException {
+        targets = Targets.get();
+        Object recognizer = targets.recognizer(100, 110);
+
+        Mat labels = new Mat();
+        Mat data = Synthetic.features(400, features, 4, labels, 1);
+        targets.train(recognizer, data, labels);
+        predictor = targets.predictor(recognizer, engine);
+
+        samples = Synthetic.features(batch, features, 4, new Mat(), 2);
+        sample = samples.row(0);
+        out = new float[batch];
+    }
+
+    @Benchmark
+    public float predict() {
+        return targets.predict(predictor, sample);
+    }
+
+    @Benchmark
+    public float[] predictBatch() {
+        return targets.predictBatch(predictor, samples, out);
+    }
+}
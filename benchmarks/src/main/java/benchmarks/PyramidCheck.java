@@ -0,0 +1,86 @@
+package benchmarks;
+
+import java.util.List;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+
+/**
+ * Checks that coarse-to-fine detection finds the same bodies as detection at
+ * full resolution. Every body of each result has to overlap some body of the
+ * other one by at least 1 - tolerance and their areas may differ by tolerance.
+ */
+public class PyramidCheck {
+
+    static final int nbins = 20;
+    static final int maxValue = 255;
+
+    public static void main(String[] args) {
+        int levels = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        double tolerance = args.length > 1 ? Double.parseDouble(args[1]) : 0.1;
+
+        Targets targets = Targets.get();
+        Object recognizer = targets.recognizer(100, 110);
+        int failed = 0;
+        int frames = 0;
+
+        for (int[] size : new int[][]{{240, 320}, {720, 1280}}) {
+            for (int blobSize : new int[]{15, 30}) {
+                for (long seed = 0; seed < 8; seed++) {
+                    Mat frame = Synthetic.frame(size[0], size[1], 8, blobSize, seed);
+                    Mat mask = Synthetic.background(size[0], size[1], seed + 100);
+                    Mat filtered = targets.maskFilter(recognizer, frame, mask, nbins, maxValue);
+
+                    List<Targets.Body> full = targets.findBodies(recognizer, filtered, 0);
+                    List<Targets.Body> coarse = targets.findBodies(recognizer, filtered, levels);
+                    frames++;
+
+                    if (!covered(full, coarse, tolerance) || !covered(coarse, full, tolerance)) {
+                        failed++;
+                        System.out.println(String.format("%dx%d, blob %d, seed %d: %d bodies at full resolution, %d coarse-to-fine",
+                                size[1], size[0], blobSize, seed, full.size(), coarse.size()));
+                    }
+                }
+            }
+        }
+
+        System.out.println(String.format("%d of %d frames differ, levels %d, tolerance %.2f", failed, frames, levels, tolerance));
+
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean covered(List<Targets.Body> a, List<Targets.Body> b, double tolerance) {
+        for (Targets.Body d : a) {
+            boolean found = false;
+
+            for (Targets.Body e : b) {
+                if (overlap(d.rect, e.rect) >= 1 - tolerance
+                        && Math.abs(d.area - e.area) <= tolerance * Math.max(d.area, e.area)) {
+                    found = true;
+                    break;
+                }
+            }
+
+            if (!found) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Ratio of intersection and union of rectangles.
+     * @param a     rectangle
+     * @param b     rectangle
+     * @return      overlap from 0 to 1
+     */
+    static double overlap(Rect a, Rect b) {
+        int w = Math.min(a.x + a.width, b.x + b.width) - Math.max(a.x, b.x);
+        int h = Math.min(a.y + a.height, b.y + b.height) - Math.max(a.y, b.y);
+        double i = w > 0 && h > 0 ? (double) w * h : 0;
+        return i / (a.area() + b.area() - i);
+    }
+}
@@ -0,0 +1,145 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+
+/**
+ * Deterministic synthetic inputs, the same seed gives the same data.
+ */
+final class Synthetic {
+
+    private Synthetic() {
+    }
+
+    /**
+     * Grayscale frame with noisy background and bright blobs.
+     * @param height    height of frame
+     * @param width     width of frame
+     * @param blobs     number of blobs
+     * @param blobSize  radius of blobs
+     * @param seed      seed of generator
+     * @return          frame of type CV_8UC1
+     */
+    static Mat frame(int height, int width, int blobs, int blobSize, long seed) {
+        Random random = new Random(seed);
+        byte[] pixels = new byte[height * width];
+
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (20 + random.nextInt(20));
+        }
+
+        Mat frame = new Mat(height, width, CvType.CV_8UC1);
+        frame.put(0, 0, pixels);
+
+        for (int i = 0; i < blobs; i++) {
+            Point center = new Point(random.nextInt(width), random.nextInt(height));
+            Size axes = new Size(blobSize * (0.5 + 0.5 * random.nextDouble()), blobSize * (0.5 + 0.5 * random.nextDouble()));
+            Imgproc.ellipse(frame, center, axes, random.nextInt(180), 0, 360, new Scalar(120 + random.nextInt(130)), -1);
+        }
+
+        return frame;
+    }
+
+    /**
+     * Empty scene of the same noise as frames.
+     * @param height    height of frame
+     * @param width     width of frame
+     * @param seed      seed of generator
+     * @return          frame of type CV_8UC1
+     */
+    static Mat background(int height, int width, long seed) {
+        return frame(height, width, 0, 0, seed);
+    }
+
+    /**
+     * Feature matrix with class dependent mean.
+     * @param rows      number of samples
+     * @param cols      number of features
+     * @param classes   number of classes
+     * @param labels    output matrix of labels, N x 1
+     * @param seed      seed of generator
+     * @return          features of type CV_32FC1
+     */
+    static Mat features(int rows, int cols, int classes, Mat labels, long seed) {
+        Random random = new Random(seed);
+        float[] data = new float[rows * cols];
+        float[] classOf = new float[rows];
+
+        for (int r = 0; r < rows; r++) {
+            int label = r % classes;
+            classOf[r] = label;
+
+            for (int c = 0; c < cols; c++) {
+                data[r * cols + c] = (float) (0.1 * label * ((c % classes) == label ? 1 : 0) + 0.05 * random.nextGaussian());
+            }
+        }
+
+        Mat features = new Mat(rows, cols, CvType.CV_32FC1);
+        features.put(0, 0, data);
+
+        labels.create(rows, 1, CvType.CV_32FC1);
+        labels.put(0, 0, classOf);
+
+        return features;
+    }
+
+    /**
+     * CSV file with label in the first column and random features.
+     * @param rows  number of rows
+     * @param cols  number of columns including label
+     * @param seed  seed of generator
+     * @return      temporary file, deleted on exit
+     * @throws IOException 
+     */
+    static File csv(int rows, int cols, long seed) throws IOException {
+        Random random = new Random(seed);
+        File file = File.createTempFile("bench", ".csv");
+        file.deleteOnExit();
+
+        try (BufferedWriter out = Files.newBufferedWriter(file.toPath())) {
+            for (int r = 0; r < rows; r++) {
+                out.write(Integer.toString(r % 4));
+
+                for (int c = 1; c < cols; c++) {
+                    out.write(',');
+                    out.write(Float.toString(random.nextFloat()));
+                }
+
+                out.newLine();
+            }
+        }
+
+        return file;
+    }
+
+    /**
+     * Directory of training images named by their label.
+     * @param images    number of images
+     * @param height    height of images
+     * @param width     width of images
+     * @param seed      seed of generator
+     * @return          path to directory ending with separator
+     * @throws IOException 
+     */
+    static String trainingDir(int images, int height, int width, long seed) throws IOException {
+        File dir = Files.createTempDirectory("bench").toFile();
+
+        for (int i = 0; i < images; i++) {
+            Mat img = frame(height, width, 1, Math.min(height, width) / 4, seed + i);
+            Highgui.imwrite(new File(dir, (i % 4) + "_" + i + ".png").getPath(), img);
+        }
+
+        return dir.getPath() + File.separator;
+    }
+}
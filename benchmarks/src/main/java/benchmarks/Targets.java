@@ -0,0 +1,84 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+
+/**
+ * Access to classes of the main project, which live in the default package
+ * and can not be referenced from here. Implemented by BenchmarkTargets in
+ * the default package, calls are plain interface calls.
+ */
+public interface Targets {
+
+    /**
+     * Gets the implementation and loads native OpenCV library.
+     * @return  targets
+     */
+    static Targets get() {
+        try {
+            return (Targets) Class.forName("BenchmarkTargets").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkTargets is not on class path", e);
+        }
+    }
+
+    Object recognizer(int paddHeightMax, int paddWidthMax);
+
+    Object hogExtractor(int height, int width, int sizeCell, int sizeBlock, int hogBins);
+
+    void hog(Object extractor, Mat img, float[] dst);
+
+    int hogLength(Object extractor);
+
+    Mat maskFilter(Object recognizer, Mat img, Mat mask, int nbins, int maxValue);
+
+    Point detectHead(Object recognizer, Mat img, int nbins, int maxValue);
+
+    List<?> detect(Object recognizer, Mat img, int nbins, int maxValue);
+
+    /**
+     * Finds bodies in filtered image.
+     * @param recognizer    recognizer
+     * @param img           filtered image
+     * @param levels        pyramid levels of coarse-to-fine detector, 0 for full resolution
+     * @return              bounding rectangle and contour area of bodies
+     */
+    List<Body> findBodies(Object recognizer, Mat img, int levels);
+
+    void train(Object recognizer, Mat data, Mat labels);
+
+    /**
+     * Predictor of SVM trained by recognizer.
+     * @param recognizer    recognizer with trained SVM
+     * @param engine        "native" for OpenCV, "java" for pure Java engine loaded from saved model
+     * @return              predictor
+     * @throws IOException  if model can not be saved or loaded
+     */
+    Object predictor(Object recognizer, String engine) throws IOException;
+
+    float predict(Object predictor, Mat sample);
+
+    float[] predictBatch(Object predictor, Mat samples, float[] out);
+
+    void createModel(Object recognizer, String dir) throws IOException;
+
+    Mat readCsv(String filename) throws IOException;
+
+    /**
+     * Found body, detections of the main project are not visible here.
+     */
+    final class Body {
+
+        public final Rect rect;
+        public final double area;
+
+        public Body(Rect rect, double area) {
+            this.rect = rect;
+            this.area = area;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+
+
+/**
+ * Creating model from directory of images and reading CSV data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TrainingBenchmark {
+
+    @Param({"200"})
+    public int images;
+
+    @Param({"10000"})
+    public int csvRows;
+
+    @Param({"100"})
+    public int csvCols;
+
+    private Targets targets;
+    private Object recognizer;
+    private String dir;
+    private File csv;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        targets = Targets.get();
+        recognizer = targets.recognizer(100, 110);
+        dir = Synthetic.trainingDir(images, 100, 110, 3);
+        csv = Synthetic.csv(csvRows, csvCols, 4);
+    }
+
+    @Setup(Level.Invocation)
+    public void dropFeatureStore() {
+        new File(dir, "features.bin").delete();
+    }
+
+    @Benchmark
+    public void createModel() throws IOException {
+        targets.createModel(recognizer, dir);
+    }
+
+    @Benchmark
+    public Mat readCsv() throws IOException {
+        return targets.readCsv(csv.getPath());
+    }
+}
@@ -0,0 +1,766 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.opencv.core.Mat;
+
+
+/**
+ * Gallery of appearance descriptors of persons for re-identification.
+ * 
+ * Descriptors are HOG features of detected bodies, compared by cosine
+ * similarity after subtraction of the center, e.g. mean descriptor of the
+ * training set. HOG features are not negative, without centering they all
+ * lie in a narrow cone and fall to a few buckets.
+ * 
+ * Search is approximate, by locality sensitive hashing with random
+ * hyperplanes: every table hashes a descriptor to the signs of its
+ * projections to bits hyperplanes, similar descriptors fall to the same
+ * bucket with high probability. Hyperplanes are sparse, each of them has
+ * about 2 * sqrt(dims) non-zero weights, so hashing does not cost more than
+ * a few exact comparisons. Besides the bucket itself, buckets differing in
+ * the least certain bits are probed. Candidates from all tables are ranked
+ * by Hamming distance of codes and the closest ones by exact similarity.
+ * 
+ * Descriptors are stored in one float array, one slot per identity. When
+ * gallery is full, identity which was not seen for the longest time is
+ * evicted. Queries run concurrently, inserts are exclusive.
+ */
+public final class AppearanceIndex {
+
+    private static final int MAGIC = 0x52454944; // "REID"
+    private static final int VERSION = 1;
+
+    // candidates compared by exact similarity
+    static final int rerank = 32;
+
+    /**
+     * Identity found by query.
+     */
+    public static final class Match {
+        public final int id;
+        public final float similarity; // cosine similarity, 1 for the same direction
+        public final long lastSeen; // time of the last update of identity
+
+        Match(int id, float similarity, long lastSeen) {
+            this.id = id;
+            this.similarity = similarity;
+            this.lastSeen = lastSeen;
+        }
+
+        @Override
+        public String toString() {
+            return "Match{id=" + id + ", similarity=" + similarity + "}";
+        }
+    }
+
+    /**
+     * Slots of identities hashed to one bucket.
+     */
+    private static final class Bucket {
+        int[] slots = new int[4];
+        int size;
+
+        void add(int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+
+            slots[size++] = slot;
+        }
+
+        void remove(int slot) {
+            for (int i = 0; i < size; i++) {
+                if (slots[i] == slot) {
+                    slots[i] = slots[--size];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Workspace of one querying thread.
+     */
+    private static final class Workspace {
+        final float[] query;
+        final float[] margins;
+        final int[] code;
+        final int[] flips;
+        final int[] histogram; // candidates per Hamming distance
+        int[] candidates = new int[256];
+        int[] distances = new int[256];
+        int[] seen = new int[0]; // epoch in which slot was examined
+        int epoch;
+
+        Workspace(int dims, int tables, int bits, int probes) {
+            query = new float[dims];
+            margins = new float[tables * bits];
+            code = new int[tables];
+            flips = new int[probes];
+            histogram = new int[tables * bits + 1];
+        }
+    }
+
+    private final int dims;
+    private final int tables;
+    private final int bits;
+    private final int probes;
+    private final int capacity;
+    private final long seed;
+    private final float[] center;
+
+    // sparse hyperplanes, nonZeros weights per hyperplane
+    private final int nonZeros;
+    private final int[] planeIndex; // tables * bits * nonZeros
+    private final float[] planeWeight;
+    private final List<Map<Integer, Bucket>> buckets = new ArrayList<>();
+
+    // slots
+    private final float[] vectors; // capacity * dims, centered and normalized
+    private final int[] ids;
+    private final long[] lastSeen;
+    private final int[] codes; // capacity * tables
+    private final int[] freeSlots;
+    private int free;
+
+    // id -> slot, in order from the least recently seen
+    private final LinkedHashMap<Integer, Integer> slotOf = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ThreadLocal<Workspace> workspace;
+
+    /**
+     * @param dims      length of descriptors
+     * @param tables    number of hash tables, more tables give better recall and slower queries
+     * @param bits      hyperplanes per table (at most 30), more bits give smaller buckets
+     * @param probes    number of neighbouring buckets probed in every table
+     * @param capacity  maximum number of identities
+     * @param seed      seed of random hyperplanes
+     * @param center    center subtracted from descriptors, null for zero
+     */
+    public AppearanceIndex(int dims, int tables, int bits, int probes, int capacity, long seed, float[] center) {
+        if (dims < 1 || tables < 1 || capacity < 1) {
+            throw new IllegalArgumentException("dims, tables and capacity must be positive");
+        }
+
+        if (bits < 1 || bits > 30) {
+            throw new IllegalArgumentException("bits must be between 1 and 30: " + bits);
+        }
+
+        if (probes < 0 || probes > bits) {
+            throw new IllegalArgumentException("probes must be between 0 and bits: " + probes);
+        }
+
+        this.dims = dims;
+        this.tables = tables;
+        this.bits = bits;
+        this.probes = probes;
+        this.capacity = capacity;
+        this.seed = seed;
+        this.center = center != null ? center.clone() : new float[dims];
+
+        if (this.center.length != dims) {
+            throw new IllegalArgumentException("center has " + this.center.length + " values, expected " + dims);
+        }
+
+        nonZeros = Math.min(dims, Math.max(16, (int) Math.ceil(2 * Math.sqrt(dims))));
+        planeIndex = new int[tables * bits * nonZeros];
+        planeWeight = new float[planeIndex.length];
+        Random random = new Random(seed);
+
+        for (int i = 0; i < planeIndex.length; i++) {
+            planeIndex[i] = random.nextInt(dims);
+            planeWeight[i] = (float) random.nextGaussian();
+        }
+
+        for (int t = 0; t < tables; t++) {
+            buckets.add(new HashMap<>());
+        }
+
+        vectors = new float[Math.multiplyExact(capacity, dims)];
+        ids = new int[capacity];
+        lastSeen = new long[capacity];
+        codes = new int[Math.multiplyExact(capacity, tables)];
+        freeSlots = new int[capacity];
+
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+
+        free = capacity;
+        workspace = ThreadLocal.withInitial(() -> new Workspace(dims, tables, bits, probes));
+    }
+
+    /**
+     * Index with parameters suited to tens of thousands of HOG descriptors.
+     * @param dims      length of descriptors
+     * @param capacity  maximum number of identities
+     * @param center    center subtracted from descriptors, see mean
+     * @return          index
+     */
+    public static AppearanceIndex create(int dims, int capacity, float[] center) {
+        return new AppearanceIndex(dims, 24, 12, 3, capacity, 42, center);
+    }
+
+    /**
+     * Mean of samples, center of descriptors.
+     * @param samples   matrix of size N x D, one sample per row
+     * @return          mean row
+     */
+    public static float[] mean(Mat samples) {
+        int cols = samples.cols();
+        float[] row = new float[cols];
+        double[] sum = new double[cols];
+
+        for (int r = 0; r < samples.rows(); r++) {
+            samples.get(r, 0, row);
+
+            for (int c = 0; c < cols; c++) {
+                sum[c] += row[c];
+            }
+        }
+
+        float[] mean = new float[cols];
+
+        for (int c = 0; c < cols; c++) {
+            mean[c] = (float) (sum[c] / Math.max(1, samples.rows()));
+        }
+
+        return mean;
+    }
+
+    /**
+     * Number of stored identities.
+     * @return  size
+     */
+    public int size() {
+        lock.readLock().lock();
+
+        try {
+            return slotOf.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores descriptor of detected body.
+     * @param id            identity, e.g. Human.getId()
+     * @param detection     detection with features
+     * @param time          time of detection, e.g. number of frame
+     */
+    public void put(int id, Detection detection, long time) {
+        put(id, descriptor(detection.features), time);
+    }
+
+    /**
+     * Stores descriptor of identity. Descriptor of known identity is
+     * replaced, the least recently seen identity is evicted when index is full.
+     * @param id            identity
+     * @param descriptor    features of length dims
+     * @param time          time of observation
+     */
+    public void put(int id, float[] descriptor, long time) {
+        checkLength(descriptor);
+        insert(id, prepare(descriptor, new float[dims]), time);
+    }
+
+    /**
+     * Stores centered and normalized descriptor.
+     * @param id    identity
+     * @param v     descriptor prepared by prepare
+     * @param time  time of observation
+     */
+    private void insert(int id, float[] v, long time) {
+        int[] code = new int[tables];
+        hash(v, code, null);
+
+        lock.writeLock().lock();
+
+        try {
+            Integer known = slotOf.get(id);
+            int slot;
+
+            if (known != null) {
+                slot = known;
+                unlink(slot);
+            } else {
+                if (free == 0) {
+                    Iterator<Map.Entry<Integer, Integer>> eldest = slotOf.entrySet().iterator();
+                    int evicted = eldest.next().getValue();
+                    eldest.remove();
+                    unlink(evicted);
+                    freeSlots[free++] = evicted;
+                }
+
+                slot = freeSlots[--free];
+                slotOf.put(id, slot);
+            }
+
+            System.arraycopy(v, 0, vectors, slot * dims, dims);
+            ids[slot] = id;
+            lastSeen[slot] = time;
+
+            for (int t = 0; t < tables; t++) {
+                codes[slot * tables + t] = code[t];
+                buckets.get(t).computeIfAbsent(code[t], k -> new Bucket()).add(slot);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes identity.
+     * @param id    identity
+     * @return      true if identity was stored
+     */
+    public boolean remove(int id) {
+        lock.writeLock().lock();
+
+        try {
+            Integer slot = slotOf.remove(id);
+
+            if (slot == null) {
+                return false;
+            }
+
+            unlink(slot);
+            freeSlots[free++] = slot;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes identities not seen since given time.
+     * @param time  the oldest kept time of observation
+     * @return      number of removed identities
+     */
+    public int evictBefore(long time) {
+        lock.writeLock().lock();
+
+        try {
+            int removed = 0;
+
+            for (Iterator<Integer> it = slotOf.values().iterator(); it.hasNext(); ) {
+                int slot = it.next();
+
+                if (lastSeen[slot] < time) {
+                    it.remove();
+                    unlink(slot);
+                    freeSlots[free++] = slot;
+                    removed++;
+                }
+            }
+
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the most similar identities to detected body.
+     * @param detection     detection with features
+     * @param k             maximum number of results
+     * @return              matches sorted from the most similar
+     */
+    public List<Match> query(Detection detection, int k) {
+        return query(descriptor(detection.features), k);
+    }
+
+    /**
+     * Finds the most similar identities. Search is approximate, identity
+     * which does not share any probed bucket with descriptor is not found.
+     * Candidates are ranked by Hamming distance of codes of all tables first,
+     * only the closest ones are compared by exact similarity.
+     * @param descriptor    features of length dims
+     * @param k             maximum number of results, 0 gives empty list
+     * @return              matches sorted from the most similar
+     */
+    public List<Match> query(float[] descriptor, int k) {
+        checkLength(descriptor);
+
+        if (k < 0) {
+            throw new IllegalArgumentException("number of results must not be negative: " + k);
+        }
+
+        if (k == 0) {
+            return new ArrayList<>();
+        }
+
+        Workspace ws = workspace.get();
+        float[] v = prepare(descriptor, ws.query);
+        int[] code = ws.code;
+        hash(v, code, ws.margins);
+
+        lock.readLock().lock();
+
+        try {
+            int count = candidates(code, ws);
+
+            // the smallest distance keeping at least rerank candidates
+            int limit = Math.max(k, rerank);
+            int threshold = 0;
+
+            for (int kept = ws.histogram[0]; kept < limit && threshold < ws.histogram.length - 1; kept += ws.histogram[++threshold]) {
+            }
+
+            Arrays.fill(ws.histogram, 0);
+
+            // top k kept sorted by insertion, k is small
+            int[] bestSlot = new int[k];
+            float[] bestSim = new float[k];
+            int found = 0;
+
+            for (int i = 0; i < count; i++) {
+                if (ws.distances[i] > threshold) {
+                    continue;
+                }
+
+                int slot = ws.candidates[i];
+                float sim = dot(v, vectors, slot * dims);
+
+                if (found < k || sim > bestSim[found - 1]) {
+                    int j = found < k ? found++ : k - 1;
+
+                    while (j > 0 && bestSim[j - 1] < sim) {
+                        bestSim[j] = bestSim[j - 1];
+                        bestSlot[j] = bestSlot[j - 1];
+                        j--;
+                    }
+
+                    bestSim[j] = sim;
+                    bestSlot[j] = slot;
+                }
+            }
+
+            List<Match> matches = new ArrayList<>(found);
+
+            for (int i = 0; i < found; i++) {
+                matches.add(new Match(ids[bestSlot[i]], bestSim[i], lastSeen[bestSlot[i]]));
+            }
+
+            return matches;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Collects identities from probed buckets of all tables together with
+     * Hamming distances of their codes. Called under read lock.
+     * @param code  codes of query
+     * @param ws    workspace, candidates, distances and histogram of distances are filled
+     * @return      number of candidates
+     */
+    private int candidates(int[] code, Workspace ws) {
+        if (ws.seen.length < capacity) {
+            ws.seen = new int[capacity];
+        }
+
+        if (++ws.epoch == 0) {
+            Arrays.fill(ws.seen, 0);
+            ws.epoch = 1;
+        }
+
+        int[] flips = ws.flips;
+        int count = 0;
+
+        for (int t = 0; t < tables; t++) {
+            Map<Integer, Bucket> table = buckets.get(t);
+
+            // bits of the smallest margins are the least certain
+            leastCertain(ws.margins, t * bits, flips);
+
+            for (int p = -1; p < flips.length; p++) {
+                Bucket b = table.get(p < 0 ? code[t] : code[t] ^ (1 << flips[p]));
+
+                if (b == null) {
+                    continue;
+                }
+
+                for (int i = 0; i < b.size; i++) {
+                    int slot = b.slots[i];
+
+                    if (ws.seen[slot] == ws.epoch) {
+                        continue;
+                    }
+
+                    ws.seen[slot] = ws.epoch;
+                    int distance = 0;
+
+                    for (int u = 0; u < tables; u++) {
+                        distance += Integer.bitCount(code[u] ^ codes[slot * tables + u]);
+                    }
+
+                    if (count == ws.candidates.length) {
+                        ws.candidates = Arrays.copyOf(ws.candidates, count * 2);
+                        ws.distances = Arrays.copyOf(ws.distances, count * 2);
+                    }
+
+                    ws.candidates[count] = slot;
+                    ws.distances[count] = distance;
+                    ws.histogram[distance]++;
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Writes all identities to file, file is replaced atomically.
+     * Hyperplanes are not written, they are generated from seed.
+     * @param file  output file
+     * @throws IOException 
+     */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        lock.readLock().lock();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dims);
+            out.writeInt(tables);
+            out.writeInt(bits);
+            out.writeInt(probes);
+            out.writeInt(capacity);
+            out.writeLong(seed);
+
+            for (float c : center) {
+                out.writeFloat(c);
+            }
+
+            out.writeInt(slotOf.size());
+
+            // from the least recently seen, order of eviction is restored
+            for (int slot : slotOf.values()) {
+                out.writeInt(ids[slot]);
+                out.writeLong(lastSeen[slot]);
+
+                for (int i = 0; i < dims; i++) {
+                    out.writeFloat(vectors[slot * dims + i]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads index written by write.
+     * @param file  file
+     * @return      index with the same parameters and identities
+     * @throws IOException if file is damaged
+     */
+    public static AppearanceIndex read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("file " + file + " is not appearance index");
+            }
+
+            int dims = in.readInt();
+            int tables = in.readInt();
+            int bits = in.readInt();
+            int probes = in.readInt();
+            int capacity = in.readInt();
+            long seed = in.readLong();
+
+            if (dims < 1 || dims > 1 << 20) {
+                throw new IOException("file " + file + " is damaged");
+            }
+
+            float[] center = new float[dims];
+
+            for (int i = 0; i < dims; i++) {
+                center[i] = in.readFloat();
+            }
+
+            AppearanceIndex index;
+
+            try {
+                index = new AppearanceIndex(dims, tables, bits, probes, capacity, seed, center);
+            } catch (IllegalArgumentException | ArithmeticException e) {
+                throw new IOException("file " + file + " is damaged", e);
+            }
+
+            int n = in.readInt();
+            float[] v = new float[index.dims];
+
+            for (int i = 0; i < n; i++) {
+                int id = in.readInt();
+                long time = in.readLong();
+
+                for (int j = 0; j < v.length; j++) {
+                    v[j] = in.readFloat();
+                }
+
+                index.insert(id, v, time);
+            }
+
+            return index;
+        } catch (EOFException e) {
+            throw new IOException("file " + file + " is truncated", e);
+        }
+    }
+
+    /**
+     * Copies features of detection to array.
+     * @param features  matrix of size 1 x D
+     * @return          descriptor
+     */
+    static float[] descriptor(Mat features) {
+        float[] d = new float[(int) features.total()];
+        features.get(0, 0, d);
+        return d;
+    }
+
+    /**
+     * Removes slot from buckets of all tables.
+     * @param slot  slot of identity
+     */
+    private void unlink(int slot) {
+        for (int t = 0; t < tables; t++) {
+            Map<Integer, Bucket> table = buckets.get(t);
+            int c = codes[slot * tables + t];
+            Bucket b = table.get(c);
+            b.remove(slot);
+
+            if (b.size == 0) {
+                table.remove(c);
+            }
+        }
+    }
+
+    /**
+     * Computes codes of descriptor in all tables.
+     * @param v         centered and normalized descriptor
+     * @param code      output codes, one per table
+     * @param margins   output absolute projections to all hyperplanes, may be null
+     */
+    private void hash(float[] v, int[] code, float[] margins) {
+        for (int t = 0; t < tables; t++) {
+            int c = 0;
+
+            for (int b = 0; b < bits; b++) {
+                int offset = (t * bits + b) * nonZeros;
+                float p = 0;
+
+                for (int i = offset; i < offset + nonZeros; i++) {
+                    p += planeWeight[i] * v[planeIndex[i]];
+                }
+
+                if (p > 0) {
+                    c |= 1 << b;
+                }
+
+                if (margins != null) {
+                    margins[t * bits + b] = Math.abs(p);
+                }
+            }
+
+            code[t] = c;
+        }
+    }
+
+    /**
+     * Finds bits of one table with the smallest margins.
+     * @param margins   margins of all bits
+     * @param offset    position of the first bit of table
+     * @param order     output indexes of bits, from the smallest margin
+     */
+    private void leastCertain(float[] margins, int offset, int[] order) {
+        for (int p = 0; p < order.length; p++) {
+            int best = -1;
+
+            for (int b = 0; b < bits; b++) {
+                boolean used = false;
+
+                for (int q = 0; q < p; q++) {
+                    used |= order[q] == b;
+                }
+
+                if (!used && (best < 0 || margins[offset + b] < margins[offset + best])) {
+                    best = b;
+                }
+            }
+
+            order[p] = best;
+        }
+    }
+
+    private void checkLength(float[] descriptor) {
+        if (descriptor.length != dims) {
+            throw new IllegalArgumentException("descriptor has " + descriptor.length + " values, expected " + dims);
+        }
+    }
+
+    /**
+     * Subtracts center from descriptor and normalizes it to unit length.
+     * @param src   descriptor
+     * @param dst   output buffer
+     * @return      dst
+     */
+    private float[] prepare(float[] src, float[] dst) {
+        double sum = 0;
+
+        for (int i = 0; i < src.length; i++) {
+            float x = src[i] - center[i];
+            dst[i] = x;
+            sum += x * x;
+        }
+
+        float inv = sum > 0 ? (float) (1 / Math.sqrt(sum)) : 0;
+
+        for (int i = 0; i < src.length; i++) {
+            dst[i] *= inv;
+        }
+
+        return dst;
+    }
+
+    private static float dot(float[] v, float[] m, int offset) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int n = v.length;
+        int i = 0;
+
+        // independent sums, loop is unrolled and vectorized by JIT
+        for (; i + 3 < n; i += 4) {
+            s0 += v[i] * m[offset + i];
+            s1 += v[i + 1] * m[offset + i + 1];
+            s2 += v[i + 2] * m[offset + i + 2];
+            s3 += v[i + 3] * m[offset + i + 3];
+        }
+
+        for (; i < n; i++) {
+            s0 += v[i] * m[offset + i];
+        }
+
+        return (s0 + s1) + (s2 + s3);
+    }
+}
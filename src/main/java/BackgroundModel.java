@@ -0,0 +1,168 @@
+import java.util.Arrays;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+
+/**
+ * Adaptive model of scene background used instead of a static mask.
+ * 
+ * Background is a running average of frames updated in place with given
+ * learning rate. Histogram of frame used for threshold is updated only by
+ * pixels which changed since the previous frame. Subtraction, thresholding,
+ * histogram and background update are done in a single pass over pixels;
+ * threshold of a frame is therefore derived from the histogram of the
+ * previous frame.
+ * 
+ * Instance is not thread-safe, frames have to be applied in order.
+ */
+public class BackgroundModel {
+
+    private final int nbins;
+    private final int maxValue;
+    private final double learningRate;
+    private final int channels;
+
+    // running average of frames
+    private final float[] background;
+
+    // previous frame and its histogram of the first channel
+    private final byte[] previous;
+    private final float[] hist;
+
+    // bin of every intensity, -1 for values out of histogram range
+    private final int[] binOf = new int[256];
+
+    private final byte[] pixels;
+    private boolean first = true;
+    private int threshold;
+
+    /**
+     * @param mask          initial background, 8-bit image
+     * @param nbins         number of bins used for histogram computation
+     * @param maxValue      maximum intensity value which will be examined
+     * @param learningRate  weight of new frame in background, from 0 (static mask) to 1
+     */
+    public BackgroundModel(Mat mask, int nbins, int maxValue, double learningRate) {
+        if (mask.depth() != CvType.CV_8U) {
+            throw new IllegalArgumentException("mask has to be 8-bit image");
+        }
+
+        if (learningRate < 0 || learningRate > 1) {
+            throw new IllegalArgumentException("learning rate has to be from 0 to 1");
+        }
+
+        this.nbins = nbins;
+        this.maxValue = maxValue;
+        this.learningRate = learningRate;
+        this.channels = mask.channels();
+
+        int size = (int) mask.total() * channels;
+
+        pixels = new byte[size];
+        previous = new byte[size];
+        background = new float[size];
+        hist = new float[nbins];
+
+        mask.get(0, 0, pixels);
+        for (int i = 0; i < size; i++) {
+            background[i] = pixels[i] & 0xFF;
+        }
+
+        for (int v = 0; v < binOf.length; v++) {
+            binOf[v] = v < maxValue ? v * nbins / maxValue : -1;
+        }
+    }
+
+    /**
+     * Filters background of frame and updates the model by it.
+     * @param img   frame of the same size and type as mask
+     * @return      filtered frame
+     */
+    public Mat apply(Mat img) {
+        Mat dst = new Mat(img.size(), img.type());
+        apply(img, dst);
+        return dst;
+    }
+
+    /**
+     * Filters background of frame into given matrix and updates the model by it.
+     * @param img   frame of the same size and type as mask
+     * @param dst   destination matrix of the same size and type as frame
+     */
+    public void apply(Mat img, Mat dst) {
+        if (img.total() * img.channels() != pixels.length || img.depth() != CvType.CV_8U) {
+            throw new IllegalArgumentException("frame differs from mask in size or type");
+        }
+
+        img.get(0, 0, pixels);
+
+        boolean update = !first;
+
+        if (first) {
+            // full histogram only for the first frame
+            for (int i = 0; i < pixels.length; i += channels) {
+                count(pixels[i] & 0xFF, 1);
+            }
+
+            first = false;
+        }
+
+        threshold = Recognizer.maskThreshold(hist, nbins, maxValue);
+
+        float rate = (float) learningRate;
+        int thr = threshold;
+
+        for (int i = 0; i < pixels.length; i++) {
+            int v = pixels[i] & 0xFF;
+
+            // update histogram by changed pixels of the first channel
+            if (update && i % channels == 0 && v != (previous[i] & 0xFF)) {
+                count(previous[i] & 0xFF, -1);
+                count(v, 1);
+            }
+
+            // saturated difference compared with threshold
+            float bg = background[i];
+            previous[i] = pixels[i];
+
+            if (v - bg <= thr) {
+                pixels[i] = 0;
+            }
+
+            background[i] = bg + rate * (v - bg);
+        }
+
+        dst.put(0, 0, pixels);
+    }
+
+    /**
+     * Threshold used for the last frame.
+     * @return  threshold of difference
+     */
+    public int threshold() {
+        return threshold;
+    }
+
+    /**
+     * Forgets history, next frame is processed as the first one.
+     * @param mask  new background
+     */
+    public void reset(Mat mask) {
+        mask.get(0, 0, pixels);
+        for (int i = 0; i < pixels.length; i++) {
+            background[i] = pixels[i] & 0xFF;
+        }
+
+        Arrays.fill(hist, 0f);
+        Arrays.fill(previous, (byte) 0);
+        first = true;
+    }
+
+    private void count(int v, int n) {
+        int bin = binOf[v];
+
+        if (bin >= 0) {
+            hist[bin] += n;
+        }
+    }
+}
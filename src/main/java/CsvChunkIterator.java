@@ -0,0 +1,88 @@
+import au.com.bytecode.opencsv.CSVReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+
+/**
+ * Iterates over CSV file in blocks of fixed number of rows.
+ * Each block is returned as a new Mat of type CV_32FC1, the parsing buffer is reused.
+ */
+public class CsvChunkIterator implements Iterator<Mat>, Closeable {
+
+    private final CSVReader reader;
+    private final int chunkRows;
+
+    private float[] values;
+    private String[] nextLine;
+    private int cols = -1;
+    private int lineNo = 0;
+
+    /**
+     * @param reader        opened CSV reader
+     * @param chunkRows     maximum number of rows in one block
+     * @throws IOException 
+     */
+    public CsvChunkIterator(CSVReader reader, int chunkRows) throws IOException {
+        if (chunkRows <= 0) {
+            throw new IllegalArgumentException("chunkRows must be positive");
+        }
+
+        this.reader = reader;
+        this.chunkRows = chunkRows;
+        this.nextLine = reader.readNext();
+
+        if (nextLine != null) {
+            cols = nextLine.length;
+            values = new float[chunkRows * cols];
+        }
+    }
+
+    /**
+     * Number of columns of the file, -1 for empty file.
+     * @return  number of columns
+     */
+    public int cols() {
+        return cols;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextLine != null;
+    }
+
+    @Override
+    public Mat next() {
+        if (nextLine == null) {
+            throw new NoSuchElementException();
+        }
+
+        int rows = 0;
+
+        try {
+            while (nextLine != null && rows < chunkRows) {
+                lineNo++;
+                DataHandler.parseRow(nextLine, values, rows * cols, cols, lineNo);
+                rows++;
+                nextLine = reader.readNext();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        Mat chunk = new Mat(rows, cols, CvType.CV_32FC1);
+        chunk.put(0, 0, rows == chunkRows ? values : Arrays.copyOf(values, rows * cols));
+
+        return chunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
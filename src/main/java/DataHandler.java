@@ -9,12 +9,9 @@ import au.com.bytecode.opencsv.CSVReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import org.opencv.core.Core;
+import java.util.Arrays;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfFloat;
 import org.opencv.core.Rect;
 
 
@@ -51,39 +48,146 @@ public class DataHandler {
 
     /**
      * Reads CSV file and puts all data to Mat.
+     * File is read only once, values are parsed into primitive buffer
+     * and copied to the output matrix in one step.
      * @param filename      name ofCSV file
      * @return              matrix of data taken from CSV file
      * @throws FileNotFoundException
      * @throws IOException 
      */
     public Mat readCsv(String filename) throws FileNotFoundException, IOException {
-        // get size of csv file
-        CSVReader reader = new CSVReader(new FileReader(filename));
-        int cols = reader.readNext().length;
-        int rows = reader.readAll().size() + 1;
-
-        // set up size and type of ouput Mat
-        // training/testing data need to be stored in Mat of type CV_32FC1
-        Mat data = new Mat(0, 0, CvType.CV_32FC1);
-
-        // read again
-        reader = new CSVReader(new FileReader(filename));
-        String[] nextLine;
-
-        Mat dataTmp;
-
-        while ((nextLine = reader.readNext()) != null) {
-            List<Mat> listData = new ArrayList<>();
-            
-            for (String s : nextLine) {
-                listData.add(new MatOfFloat(Float.parseFloat(s)));
+        try (CSVReader reader = new CSVReader(new FileReader(filename))) {
+            String[] nextLine = reader.readNext();
+
+            if (nextLine == null) {
+                return new Mat(0, 0, CvType.CV_32FC1);
+            }
+
+            int cols = nextLine.length;
+            int rows = 0;
+
+            // growable buffer of parsed values
+            float[] values = new float[cols * 1024];
+
+            do {
+                if (values.length < (rows + 1) * cols) {
+                    values = Arrays.copyOf(values, values.length * 2);
+                }
+
+                parseRow(nextLine, values, rows * cols, cols, rows + 1);
+                rows++;
+            } while ((nextLine = reader.readNext()) != null);
+
+            // training/testing data need to be stored in Mat of type CV_32FC1
+            Mat data = new Mat(rows, cols, CvType.CV_32FC1);
+            // put stops at the end of Mat, unused tail of buffer is not copied
+            data.put(0, 0, values);
+
+            return data;
+        }
+    }
+
+    /**
+     * Opens CSV file for reading in blocks of fixed number of rows.
+     * Only one block is held in memory at once.
+     * @param filename      name of CSV file
+     * @param chunkRows     maximum number of rows in one block
+     * @return              iterator over blocks of data, it has to be closed
+     * @throws FileNotFoundException
+     * @throws IOException 
+     */
+    public CsvChunkIterator readCsvChunks(String filename, int chunkRows) throws FileNotFoundException, IOException {
+        return new CsvChunkIterator(new CSVReader(new FileReader(filename)), chunkRows);
+    }
+
+    /**
+     * Reads CSV file with labels in the first column and stores features
+     * in quantized matrix, so they take 2 or 4 times less memory than in Mat.
+     * File is read twice, first to find number of rows and ranges of columns,
+     * then to encode values. Only one row is held as floats at once.
+     * @param filename      name of CSV file
+     * @param encoding      encoding of features
+     * @param labels        output matrix for labels of type CV_32FC1
+     * @return              quantized features, all columns except of the first one
+     * @throws FileNotFoundException
+     * @throws IOException 
+     */
+    public QuantizedMatrix readCsvQuantized(String filename, QuantizedMatrix.Encoding encoding, Mat labels) throws FileNotFoundException, IOException {
+        int rows = 0;
+        int cols = 0;
+        float[] row = null;
+        float[] min = null;
+        float[] max = null;
+
+        // first pass, size and ranges
+        try (CSVReader reader = new CSVReader(new FileReader(filename))) {
+            String[] nextLine;
+
+            while ((nextLine = reader.readNext()) != null) {
+                if (row == null) {
+                    cols = nextLine.length;
+                    row = new float[cols];
+                    min = new float[cols - 1];
+                    max = new float[cols - 1];
+                    Arrays.fill(min, Float.POSITIVE_INFINITY);
+                    Arrays.fill(max, Float.NEGATIVE_INFINITY);
+                }
+
+                parseRow(nextLine, row, 0, cols, rows + 1);
+                QuantizedMatrix.range(row, 1, min, max);
+                rows++;
             }
+        }
+
+        if (rows == 0) {
+            labels.create(0, 1, CvType.CV_32FC1);
+            return QuantizedMatrix.float16(0, 0);
+        }
 
-            dataTmp = new Mat(1, cols, CvType.CV_32FC1);
-            Core.hconcat(listData, dataTmp);
-            data.push_back(dataTmp);
+        QuantizedMatrix q = encoding == QuantizedMatrix.Encoding.INT8 ? QuantizedMatrix.int8(rows, min, max) : QuantizedMatrix.float16(rows, cols - 1);
+        float[] classes = new float[rows];
+
+        // second pass, encoding
+        try (CSVReader reader = new CSVReader(new FileReader(filename))) {
+            for (int r = 0; r < rows; r++) {
+                String[] nextLine = reader.readNext();
+
+                if (nextLine == null) {
+                    throw new IOException("file " + filename + " changed while it was read");
+                }
+
+                parseRow(nextLine, row, 0, cols, r + 1);
+                classes[r] = row[0];
+                q.setRow(r, row, 1);
+            }
         }
 
-        return data;
+        labels.create(rows, 1, CvType.CV_32FC1);
+        labels.put(0, 0, classes);
+
+        return q;
+    }
+
+    /**
+     * Parses one line of CSV file into given buffer.
+     * @param line      values of one line
+     * @param dst       destination buffer
+     * @param offset    position of first value in buffer
+     * @param cols      expected number of values
+     * @param lineNo    number of line used in error message
+     * @throws IOException 
+     */
+    static void parseRow(String[] line, float[] dst, int offset, int cols, int lineNo) throws IOException {
+        if (line.length != cols) {
+            throw new IOException("line " + lineNo + " has " + line.length + " values, expected " + cols);
+        }
+
+        try {
+            for (int i = 0; i < cols; i++) {
+                dst[offset + i] = Float.parseFloat(line[i]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("line " + lineNo + " contains invalid value", e);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,312 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.highgui.Highgui;
+
+
+/**
+ * Streams grayscale images of dataset with prefetching.
+ * 
+ * File bytes are read on a pool of I/O threads, large files are memory-mapped.
+ * Images are decoded in memory on a separate pool of CPU threads. At most
+ * prefetch images are read or decoded ahead of the consumer, images are
+ * returned in the order of paths. Method take can be called from several
+ * threads, caller is responsible for release of returned images.
+ */
+public class DatasetReader implements Iterator<DatasetReader.Item>, Closeable {
+
+    // files larger than this are memory-mapped
+    static final long mapThreshold = 1 << 20;
+
+    /**
+     * Image of dataset.
+     */
+    public static class Item {
+        public final int index; // order of path
+        public final Path path;
+        public final Mat image; // grayscale image, null if it can not be read
+        public final String error; // description of the problem, null if image was read
+
+        Item(int index, Path path, Mat image, String error) {
+            this.index = index;
+            this.path = path;
+            this.image = image;
+            this.error = error;
+        }
+    }
+
+    private static final CompletableFuture<Item> END = CompletableFuture.completedFuture(null);
+
+    private final Iterator<Path> paths;
+    private final Stream<Path> walk; // closed with reader, null for given paths
+    private final ExecutorService ioPool;
+    private final ExecutorService cpuPool;
+    private final BlockingQueue<CompletableFuture<Item>> queue;
+    private final Thread producer;
+
+    private volatile boolean finished; // end of dataset was taken
+    private volatile boolean closed;
+    private Item next;
+
+    /**
+     * Creates reader of given files.
+     * @param paths         files of images
+     * @param ioThreads     number of threads reading files
+     * @param cpuThreads    number of threads decoding images
+     * @param prefetch      maximum number of images read ahead
+     */
+    public DatasetReader(List<Path> paths, int ioThreads, int cpuThreads, int prefetch) {
+        this(paths.iterator(), null, ioThreads, cpuThreads, prefetch);
+    }
+
+    private DatasetReader(Iterator<Path> paths, Stream<Path> walk, int ioThreads, int cpuThreads, int prefetch) {
+        if (ioThreads <= 0 || cpuThreads <= 0 || prefetch <= 0) {
+            throw new IllegalArgumentException("threads and prefetch must be positive");
+        }
+
+        this.paths = paths;
+        this.walk = walk;
+        ioPool = Executors.newFixedThreadPool(ioThreads, daemon("dataset-io"));
+        cpuPool = Executors.newFixedThreadPool(cpuThreads, daemon("dataset-decode"));
+        queue = new ArrayBlockingQueue<>(prefetch + 1);
+
+        producer = daemon("dataset-walk").newThread(this::produce);
+        producer.start();
+    }
+
+    /**
+     * Creates reader of all files with given extension in directory and its
+     * subdirectories. Directories are walked lazily while images are read.
+     * @param dir           directory
+     * @param extension     extension of images, case is ignored
+     * @param ioThreads     number of threads reading files
+     * @param cpuThreads    number of threads decoding images
+     * @param prefetch      maximum number of images read ahead
+     * @return              reader
+     * @throws IOException  if directory can not be opened
+     */
+    public static DatasetReader walk(Path dir, String extension, int ioThreads, int cpuThreads, int prefetch) throws IOException {
+        String suffix = extension.toLowerCase();
+        Stream<Path> walk = Files.walk(dir)
+                .filter(p -> p.getFileName().toString().toLowerCase().endsWith(suffix) && Files.isRegularFile(p));
+
+        return new DatasetReader(walk.iterator(), walk, ioThreads, cpuThreads, prefetch);
+    }
+
+    /**
+     * Submits reading and decoding of images in order of paths.
+     */
+    private void produce() {
+        try {
+            int index = 0;
+
+            while (!closed && paths.hasNext()) {
+                Path path = paths.next();
+                int i = index++;
+
+                CompletableFuture<Item> f = CompletableFuture
+                        .supplyAsync(() -> read(path), ioPool)
+                        .thenApplyAsync(bytes -> decode(i, path, bytes), cpuPool)
+                        .exceptionally(e -> new Item(i, path, null, cause(e).toString()));
+
+                try {
+                    queue.put(f);
+                } finally {
+                    // closed while waiting for space, the image is not taken by anyone
+                    if (closed) {
+                        release(f);
+                    }
+                }
+            }
+
+            queue.put(END);
+        } catch (InterruptedException e) {
+            // reader is closed
+        } catch (RuntimeException e) {
+            // walk failed, it ends the dataset
+            if (!closed) {
+                System.err.println("walk of dataset failed: " + e);
+            }
+
+            queue.offer(END);
+        }
+    }
+
+    /**
+     * Reads whole file, large files are memory-mapped.
+     */
+    private byte[] read(Path path) {
+        // tasks submitted before close complete without work
+        if (closed) {
+            throw new CancellationException("reader is closed");
+        }
+
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("file " + path + " is too large");
+            }
+
+            byte[] bytes = new byte[(int) size];
+
+            if (size > mapThreshold) {
+                ch.map(FileChannel.MapMode.READ_ONLY, 0, size).get(bytes);
+            } else {
+                ByteBuffer buf = ByteBuffer.wrap(bytes);
+                while (buf.hasRemaining() && ch.read(buf) >= 0) {
+                    // read until the end
+                }
+            }
+
+            return bytes;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Item decode(int index, Path path, byte[] bytes) {
+        if (closed) {
+            return new Item(index, path, null, "reader is closed");
+        }
+
+        MatOfByte buf = new MatOfByte(bytes);
+        Mat image = Highgui.imdecode(buf, Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+        buf.release();
+
+        if (image.empty()) {
+            image.release();
+            return new Item(index, path, null, "image can not be decoded");
+        }
+
+        return new Item(index, path, image, null);
+    }
+
+    /**
+     * Releases image of item when it is ready, the future always completes.
+     */
+    private static void release(CompletableFuture<Item> f) {
+        f.whenComplete((item, e) -> {
+            if (item != null && item.image != null) {
+                item.image.release();
+            }
+        });
+    }
+
+    private static Throwable cause(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    /**
+     * Takes next image, waits until it is decoded. Can be called from several threads.
+     * @return  image or null at the end of dataset
+     * @throws InterruptedException 
+     */
+    public Item take() throws InterruptedException {
+        CompletableFuture<Item> f;
+
+        synchronized (this) {
+            if (finished) {
+                return null;
+            }
+
+            f = queue.take();
+
+            // images taken by other threads are still read, only end is recorded
+            if (f == END) {
+                finished = true;
+                return null;
+            }
+        }
+
+        return f.join();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("reading of dataset interrupted", e);
+            }
+        }
+
+        return next != null;
+    }
+
+    @Override
+    public Item next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Item item = next;
+        next = null;
+        return item;
+    }
+
+    /**
+     * Stops reading and releases images which were not taken. Images which
+     * are still read or decoded are released when they are ready, threads
+     * waiting for them get an item with error.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        finished = true;
+        producer.interrupt();
+
+        // queued tasks have to run to complete their futures, they end at once
+        ioPool.shutdown();
+        cpuPool.shutdown();
+
+        CompletableFuture<Item> f;
+        while ((f = queue.poll()) != null) {
+            release(f);
+        }
+
+        if (next != null && next.image != null) {
+            next.image.release();
+            next = null;
+        }
+
+        // wake up thread waiting in take
+        queue.offer(END);
+
+        if (walk != null) {
+            walk.close();
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,40 @@
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+
+/**
+ * Human body found in image.
+ */
+public class Detection {
+
+    public final Rect rect; // bounding rectangle in image
+    public final double area; // area of contour
+    public final Mat crop; // padded image of body
+    public final Mat features; // HoG features of padded image
+    public final long key; // key of padded image in feature cache, 0 if not cached
+
+    public Detection(Rect rect, double area, Mat crop, Mat features) {
+        this(rect, area, crop, features, 0);
+    }
+
+    public Detection(Rect rect, double area, Mat crop, Mat features, long key) {
+        this.rect = rect;
+        this.area = area;
+        this.crop = crop;
+        this.features = features;
+        this.key = key;
+    }
+
+    /**
+     * Releases native memory of padded image and features.
+     */
+    public void release() {
+        if (crop != null) {
+            crop.release();
+        }
+
+        if (features != null) {
+            features.release();
+        }
+    }
+}
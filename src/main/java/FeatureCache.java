@@ -0,0 +1,323 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.opencv.core.Mat;
+
+
+/**
+ * Cache of HOG features and predicted classes keyed by content of padded crop.
+ * 
+ * Key is a 64-bit hash of crop bytes and HOG geometry. Every entry holds
+ * feature row and predicted class together with version of model which
+ * predicted it, so features survive change of model. Entries are stored in
+ * one direct buffer of fixed size slots outside of Java heap, the least
+ * recently used entry is evicted when all slots are taken. All methods are
+ * thread safe.
+ */
+public final class FeatureCache {
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+
+    // slot: version of model (8 B), class (4 B), padding (4 B), features
+    private static final int HEADER = 16;
+
+    private final int featureLength;
+    private final int slotBytes;
+    private final int slots;
+
+    private final ByteBuffer slab;
+    private final FloatBuffer floats;
+    private final int[] freeSlots;
+    private int freeCount;
+
+    // key and slot in order of access
+    private final LinkedHashMap<Long, Integer> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder labelHits = new LongAdder();
+    private final LongAdder labelMisses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // crop bytes for hashing, one per thread
+    private final ThreadLocal<byte[]> cropBuffer = ThreadLocal.withInitial(() -> new byte[0]);
+
+    /**
+     * Creates cache of given size.
+     * @param featureLength     length of feature row
+     * @param maxBytes          maximum size of stored entries
+     */
+    public FeatureCache(int featureLength, long maxBytes) {
+        this.featureLength = featureLength;
+        this.slotBytes = HEADER + 4 * featureLength;
+        this.slots = (int) Math.min(Integer.MAX_VALUE / slotBytes, maxBytes / slotBytes);
+
+        if (slots < 1) {
+            throw new IllegalArgumentException("cache of " + maxBytes + " B can not hold one entry");
+        }
+
+        slab = ByteBuffer.allocateDirect(slots * slotBytes).order(ByteOrder.nativeOrder());
+        floats = slab.asFloatBuffer();
+        freeSlots = new int[slots];
+
+        for (int i = 0; i < slots; i++) {
+            freeSlots[i] = slots - 1 - i;
+        }
+
+        freeCount = slots;
+    }
+
+    /**
+     * Computes key of padded crop.
+     * @param crop      padded image
+     * @param geometry  geometry of HOG features
+     * @return          key
+     */
+    public long key(Mat crop, int... geometry) {
+        int n = (int) (crop.total() * crop.elemSize());
+        byte[] bytes = cropBuffer.get();
+
+        if (bytes.length < n) {
+            bytes = new byte[n];
+            cropBuffer.set(bytes);
+        }
+
+        Mat continuous = crop.isContinuous() ? crop : crop.clone();
+        continuous.get(0, 0, bytes);
+
+        if (continuous != crop) {
+            continuous.release();
+        }
+
+        long h = hash(bytes, n, crop.type() * P3 + crop.rows() * P1 + crop.cols());
+
+        for (int g : geometry) {
+            h = mix(h, g);
+        }
+
+        return mix(h, n);
+    }
+
+    /**
+     * Fast 64-bit hash of bytes.
+     * @param bytes     data
+     * @param n         number of hashed bytes
+     * @param seed      seed
+     * @return          hash
+     */
+    static long hash(byte[] bytes, int n, long seed) {
+        long h = seed + P3;
+        int i = 0;
+
+        for (; i <= n - 8; i += 8) {
+            h = mix(h, (long) LONGS.get(bytes, i));
+        }
+
+        for (; i < n; i++) {
+            h = mix(h, bytes[i] & 0xff);
+        }
+
+        // final avalanche
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        return h ^ (h >>> 32);
+    }
+
+    private static long mix(long h, long k) {
+        k *= P2;
+        k = Long.rotateLeft(k, 31);
+        k *= P1;
+        h ^= k;
+        return Long.rotateLeft(h, 27) * P1 + P3;
+    }
+
+    /**
+     * Gets stored features.
+     * @param key       key of crop
+     * @param features  buffer for features
+     * @return          true if features were found
+     */
+    public boolean features(long key, float[] features) {
+        synchronized (this) {
+            Integer slot = entries.get(key);
+
+            if (slot != null) {
+                floats.position((slot * slotBytes + HEADER) / 4);
+                floats.get(features, 0, featureLength);
+            }
+
+            count(slot != null, hits, misses);
+            return slot != null;
+        }
+    }
+
+    /**
+     * Gets stored class predicted by given version of model.
+     * @param key       key of crop
+     * @param version   version of model
+     * @return          class or NaN if it is not stored
+     */
+    public float label(long key, long version) {
+        synchronized (this) {
+            Integer slot = entries.get(key);
+            boolean found = slot != null && slab.getLong(slot * slotBytes) == version;
+            count(found, labelHits, labelMisses);
+            return found ? slab.getFloat(slot * slotBytes + 8) : Float.NaN;
+        }
+    }
+
+    /**
+     * Stores features of crop, stored class is removed.
+     * @param key       key of crop
+     * @param features  features
+     */
+    public void putFeatures(long key, float[] features) {
+        synchronized (this) {
+            int slot = slot(key);
+            slab.putLong(slot * slotBytes, 0);
+            slab.putFloat(slot * slotBytes + 8, Float.NaN);
+            floats.position((slot * slotBytes + HEADER) / 4);
+            floats.put(features, 0, featureLength);
+        }
+    }
+
+    /**
+     * Stores class predicted for crop whose features are stored.
+     * @param key       key of crop
+     * @param version   version of model
+     * @param label     predicted class
+     */
+    public void putLabel(long key, long version, float label) {
+        synchronized (this) {
+            Integer slot = entries.get(key);
+
+            if (slot != null) {
+                slab.putLong(slot * slotBytes, version);
+                slab.putFloat(slot * slotBytes + 8, label);
+            }
+        }
+    }
+
+    /**
+     * Finds slot of key or takes a free one, evicts the least recently used entry if needed.
+     */
+    private int slot(long key) {
+        Integer slot = entries.get(key);
+
+        if (slot != null) {
+            return slot;
+        }
+
+        if (freeCount == 0) {
+            Iterator<Map.Entry<Long, Integer>> eldest = entries.entrySet().iterator();
+            freeSlots[freeCount++] = eldest.next().getValue();
+            eldest.remove();
+            evictions.increment();
+        }
+
+        int s = freeSlots[--freeCount];
+        entries.put(key, s);
+        return s;
+    }
+
+    private static void count(boolean hit, LongAdder hits, LongAdder misses) {
+        if (hit) {
+            hits.increment();
+            Metrics.cacheHits.increment();
+        } else {
+            misses.increment();
+            Metrics.cacheMisses.increment();
+        }
+    }
+
+    /**
+     * Removes all entries, statistics are kept.
+     */
+    public synchronized void clear() {
+        for (Integer slot : entries.values()) {
+            freeSlots[freeCount++] = slot;
+        }
+
+        entries.clear();
+    }
+
+    /**
+     * Length of stored feature rows.
+     * @return  number of features
+     */
+    public int featureLength() {
+        return featureLength;
+    }
+
+    /**
+     * Number of stored entries.
+     * @return  number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Maximum number of entries.
+     * @return  number of entries
+     */
+    public int capacity() {
+        return slots;
+    }
+
+    /**
+     * Size of stored entries.
+     * @return  size in bytes
+     */
+    public synchronized long bytes() {
+        return (long) entries.size() * slotBytes;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long labelHits() {
+        return labelHits.sum();
+    }
+
+    public long labelMisses() {
+        return labelMisses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Ratio of found features.
+     * @return  hit ratio from 0 to 1
+     */
+    public double hitRatio() {
+        long h = hits();
+        long total = h + misses();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("features %d hits / %d misses, classes %d hits / %d misses, %d evictions, %d entries, %d B",
+                hits(), misses(), labelHits(), labelMisses(), evictions(), size(), bytes());
+    }
+}
@@ -0,0 +1,316 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.opencv.core.Mat;
+
+
+/**
+ * On-disk store of HOG features computed from training images.
+ * 
+ * File consists of a header, an index of entries and a data section with
+ * one row of features per entry. Features are stored as floats or, to cut
+ * size of file and reading, quantized by QuantizedMatrix encoding. Entry is
+ * valid only if size and modification time of the image did not change and
+ * the store was created with the same HOG geometry. File is memory-mapped
+ * when loaded.
+ */
+public class FeatureStore {
+
+    private static final int MAGIC = 0x484F4746; // "HOGF"
+    private static final int VERSION = 4;
+
+    private final int featureLength;
+    private final Map<String, Integer> index;
+    private final long[] sizes;
+    private final long[] mtimes;
+    private final float[] labels;
+    private final ByteBuffer data;
+
+    // encoding of data, null for floats, offsets and scales of columns only for INT8
+    private final QuantizedMatrix.Encoding encoding;
+    private final float[] min;
+    private final float[] scale;
+
+    private FeatureStore(int featureLength, Map<String, Integer> index, long[] sizes, long[] mtimes, float[] labels, ByteBuffer data,
+            QuantizedMatrix.Encoding encoding, float[] min, float[] scale) {
+        this.featureLength = featureLength;
+        this.index = index;
+        this.sizes = sizes;
+        this.mtimes = mtimes;
+        this.labels = labels;
+        this.data = data;
+        this.encoding = encoding;
+        this.min = min;
+        this.scale = scale;
+    }
+
+    /**
+     * Creates a store without any entries.
+     * @return  empty store
+     */
+    public static FeatureStore empty() {
+        return new FeatureStore(0, new HashMap<>(), new long[0], new long[0], new float[0], ByteBuffer.allocate(0), null, null, null);
+    }
+
+    /**
+     * Loads a store from file. Missing, damaged or incompatible file results
+     * in empty store so all features are computed again.
+     * @param file      store file
+     * @param geometry  HOG geometry, see Recognizer.featureGeometry()
+     * @return          loaded store
+     */
+    public static FeatureStore load(File file, int... geometry) {
+        if (!file.isFile()) {
+            return empty();
+        }
+
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // buffers are indexed by int
+            if (ch.size() > Integer.MAX_VALUE) {
+                return empty();
+            }
+
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                return empty();
+            }
+
+            for (int g : geometry) {
+                if (buf.getInt() != g) {
+                    return empty();
+                }
+            }
+
+            int featureLength = buf.getInt();
+            int count = buf.getInt();
+            int code = buf.getInt();
+            long dataOffset = buf.getLong();
+
+            if (code < 0 || code > QuantizedMatrix.Encoding.values().length || featureLength < 0 || count < 0) {
+                return empty();
+            }
+
+            // every entry of index takes at least 22 bytes
+            if (dataOffset < buf.position() || dataOffset > ch.size() || count > (dataOffset - buf.position()) / 22) {
+                return empty();
+            }
+
+            QuantizedMatrix.Encoding encoding = code == 0 ? null : QuantizedMatrix.Encoding.values()[code - 1];
+            int valueBytes = encoding == null ? 4 : encoding.bytes;
+
+            if (dataOffset + Math.multiplyExact((long) valueBytes * featureLength, count) != ch.size()) {
+                return empty();
+            }
+
+            float[] min = null;
+            float[] scale = null;
+
+            if (encoding == QuantizedMatrix.Encoding.INT8) {
+                min = new float[featureLength];
+                scale = new float[featureLength];
+
+                for (int c = 0; c < featureLength; c++) {
+                    min[c] = buf.getFloat();
+                    scale[c] = buf.getFloat();
+                }
+            }
+
+            Map<String, Integer> index = new HashMap<>(count * 2);
+            long[] sizes = new long[count];
+            long[] mtimes = new long[count];
+            float[] labels = new float[count];
+
+            for (int i = 0; i < count; i++) {
+                byte[] path = new byte[buf.getShort() & 0xFFFF];
+                buf.get(path);
+                index.put(new String(path, StandardCharsets.UTF_8), i);
+                sizes[i] = buf.getLong();
+                mtimes[i] = buf.getLong();
+                labels[i] = buf.getFloat();
+            }
+
+            buf.position((int) dataOffset);
+            ByteBuffer data = buf.slice();
+
+            return new FeatureStore(featureLength, index, sizes, mtimes, labels, data, encoding, min, scale);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException | ArithmeticException e) {
+            return empty();
+        }
+    }
+
+    /**
+     * Length of stored feature rows.
+     * @return  number of floats in one row, 0 for empty store
+     */
+    public int featureLength() {
+        return featureLength;
+    }
+
+    /**
+     * Number of stored rows.
+     * @return  number of entries
+     */
+    public int size() {
+        return labels.length;
+    }
+
+    /**
+     * Copies stored features of given image to buffer.
+     * @param img   image file
+     * @param dst   buffer of size featureLength()
+     * @return      true if features are stored and image has not changed
+     */
+    public boolean read(File img, float[] dst) {
+        Integer i = index.get(key(img));
+
+        if (i == null || sizes[i] != img.length() || mtimes[i] != img.lastModified()) {
+            return false;
+        }
+
+        // absolute get, buffer can be shared between threads
+        if (encoding == null) {
+            FloatBuffer row = data.asFloatBuffer();
+            row.position(i * featureLength);
+            row.get(dst, 0, featureLength);
+        } else {
+            QuantizedMatrix.decodeRow(data, i * featureLength * encoding.bytes, encoding, min, scale, dst, featureLength);
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes a new store file with features stored as floats. File is replaced atomically.
+     * @param file      store file
+     * @param images    image files, one per row of data
+     * @param labels    labels, matrix of size N x 1
+     * @param data      features, matrix of size N x featureLength
+     * @param geometry  HOG geometry, see Recognizer.featureGeometry()
+     * @throws IOException 
+     */
+    public static void write(File file, List<File> images, Mat labels, Mat data, int... geometry) throws IOException {
+        write(file, images, labels, data, null, geometry);
+    }
+
+    /**
+     * Writes a new store file. File is replaced atomically.
+     * @param file      store file
+     * @param images    image files, one per row of data
+     * @param labels    labels, matrix of size N x 1
+     * @param data      features, matrix of size N x featureLength
+     * @param encoding  encoding of features, null for floats
+     * @param geometry  HOG geometry, see Recognizer.featureGeometry()
+     * @throws IOException 
+     */
+    public static void write(File file, List<File> images, Mat labels, Mat data, QuantizedMatrix.Encoding encoding, int... geometry)
+            throws IOException {
+        int count = images.size();
+        int featureLength = count > 0 ? data.cols() : 0;
+        QuantizedMatrix quantized = encoding != null && count > 0 ? QuantizedMatrix.quantize(data, encoding) : null;
+
+        byte[][] paths = new byte[count][];
+        // magic, version, geometry, feature length, count, encoding, data offset, scales of INT8
+        long dataOffset = 4 + 4 + 4 * geometry.length + 4 + 4 + 4 + 8;
+
+        if (encoding == QuantizedMatrix.Encoding.INT8) {
+            dataOffset += 8L * featureLength;
+        }
+
+        for (int i = 0; i < count; i++) {
+            paths[i] = key(images.get(i)).getBytes(StandardCharsets.UTF_8);
+            dataOffset += 2 + paths[i].length + 8 + 8 + 4;
+        }
+
+        // align data section to float size
+        int align = (int) ((4 - dataOffset % 4) % 4);
+        dataOffset += align;
+
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            for (int g : geometry) {
+                out.writeInt(g);
+            }
+
+            out.writeInt(featureLength);
+            out.writeInt(count);
+            out.writeInt(quantized != null ? encoding.ordinal() + 1 : 0);
+            out.writeLong(dataOffset);
+
+            if (quantized != null) {
+                quantized.writeScales(out);
+            }
+
+            float[] label = new float[1];
+
+            for (int i = 0; i < count; i++) {
+                File img = images.get(i);
+                labels.get(i, 0, label);
+
+                out.writeShort(paths[i].length);
+                out.write(paths[i]);
+                out.writeLong(img.length());
+                out.writeLong(img.lastModified());
+                out.writeFloat(label[0]);
+            }
+
+            out.write(new byte[align]);
+
+            if (quantized != null) {
+                quantized.writeValues(out);
+            } else {
+                writeFloats(out, data, count, featureLength);
+            }
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes features as big-endian floats.
+     */
+    private static void writeFloats(DataOutputStream out, Mat data, int count, int featureLength) throws IOException {
+        float[] row = new float[featureLength];
+        ByteBuffer rowBytes = ByteBuffer.allocate(4 * featureLength);
+
+        for (int i = 0; i < count; i++) {
+            data.get(i, 0, row);
+            rowBytes.clear();
+            rowBytes.asFloatBuffer().put(row);
+            out.write(rowBytes.array());
+        }
+    }
+
+    /**
+     * Label stored for given image.
+     * @param img   image file
+     * @return      stored label or NaN if image is not stored
+     */
+    public float label(File img) {
+        Integer i = index.get(key(img));
+
+        return i == null ? Float.NaN : labels[i];
+    }
+
+    private static String key(File img) {
+        return img.getAbsolutePath();
+    }
+}
@@ -0,0 +1,322 @@
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+
+
+/**
+ * Processes sequence of frames stored on disk in stages running concurrently.
+ * 
+ * Every stage has its own pool of workers and bounded input queue. When a queue
+ * is full the frame is either waited for or dropped, according to backpressure
+ * policy. Frames are handed to the sink in the order they were submitted,
+ * dropped and failed frames included.
+ */
+public class FramePipeline implements AutoCloseable {
+
+    /**
+     * Stages of processing in order.
+     */
+    public enum Stage {
+        DECODE, MASK, CONTOURS, HOG, PREDICT
+    }
+
+    /**
+     * Behaviour of pipeline when queue of next stage is full.
+     */
+    public enum Backpressure {
+        BLOCK, // wait for free space
+        DROP // drop the frame
+    }
+
+    /**
+     * Frame passing through the pipeline.
+     */
+    public static class Frame {
+        public final long seq; // order of submission
+        public final String filename;
+
+        public Mat image;
+        public Mat filtered;
+        public List<Detection> detections;
+        public float[] labels; // predicted class of every detection
+
+        public boolean dropped;
+        public RuntimeException error; // failure of stage, errors are wrapped
+
+        Frame(long seq, String filename) {
+            this.seq = seq;
+            this.filename = filename;
+        }
+
+        /**
+         * Releases native memory of all matrices of frame.
+         */
+        void release() {
+            if (image != null) {
+                image.release();
+            }
+
+            if (filtered != null) {
+                filtered.release();
+            }
+
+            if (detections != null) {
+                for (Detection detection : detections) {
+                    detection.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives processed frames, always called from the same thread.
+     * Matrices of frame are released when accept returns, sink has to
+     * copy those it keeps.
+     */
+    public interface Sink {
+        void accept(Frame frame);
+    }
+
+    private final Recognizer recognizer;
+    private final Mat mask;
+    private final int nbins;
+    private final int maxValue;
+    private final Sink sink;
+    private final Backpressure backpressure;
+
+    private final Map<Stage, BlockingQueue<Frame>> queues = new EnumMap<>(Stage.class);
+    private final BlockingQueue<Frame> sinkQueue = new LinkedBlockingQueue<>();
+    private final List<ExecutorService> pools = new ArrayList<>();
+
+    // frames waiting for their predecessors
+    private final Map<Long, Frame> pending = new HashMap<>();
+
+    private long submitted = 0;
+    private long delivered = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates and starts the pipeline.
+     * @param recognizer    recognizer with loaded model
+     * @param mask          mask of scene
+     * @param nbins         number of bins used for histogram computation
+     * @param maxValue      maximum intensity value which will be examined
+     * @param sink          receiver of processed frames
+     * @param workers       number of workers of every stage, stages without entry get one
+     * @param capacity      capacity of queue in front of every stage
+     * @param backpressure  behaviour when queue is full
+     */
+    public FramePipeline(Recognizer recognizer, Mat mask, int nbins, int maxValue, Sink sink,
+            Map<Stage, Integer> workers, int capacity, Backpressure backpressure) {
+        this.recognizer = recognizer;
+        this.mask = mask;
+        this.nbins = nbins;
+        this.maxValue = maxValue;
+        this.sink = sink;
+        this.backpressure = backpressure;
+
+        for (Stage stage : Stage.values()) {
+            queues.put(stage, new ArrayBlockingQueue<>(capacity));
+        }
+
+        for (Stage stage : Stage.values()) {
+            int n = workers.getOrDefault(stage, 1);
+            ExecutorService pool = Executors.newFixedThreadPool(n, daemon("pipeline-" + stage.name().toLowerCase()));
+
+            for (int i = 0; i < n; i++) {
+                pool.execute(() -> work(stage));
+            }
+
+            pools.add(pool);
+        }
+
+        ExecutorService sinkPool = Executors.newSingleThreadExecutor(daemon("pipeline-sink"));
+        sinkPool.execute(this::deliver);
+        pools.add(sinkPool);
+    }
+
+    /**
+     * Submits frame stored in file.
+     * @param filename  path to image
+     * @return          false if frame was dropped
+     * @throws InterruptedException 
+     */
+    public boolean submit(String filename) throws InterruptedException {
+        Frame frame;
+
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("pipeline is closed");
+            }
+
+            frame = new Frame(submitted++, filename);
+        }
+
+        return pass(frame, queues.get(Stage.DECODE));
+    }
+
+    /**
+     * Waits until all submitted frames are delivered to sink and stops workers.
+     * If the waiting is interrupted, workers are stopped at once, frames not
+     * delivered yet are lost and interrupt status of thread is set again.
+     */
+    @Override
+    public void close() {
+        try {
+            synchronized (this) {
+                closed = true;
+
+                while (delivered < submitted) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (ExecutorService pool : pools) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private void work(Stage stage) {
+        BlockingQueue<Frame> in = queues.get(stage);
+        int next = stage.ordinal() + 1;
+        BlockingQueue<Frame> out = next < Stage.values().length ? queues.get(Stage.values()[next]) : sinkQueue;
+
+        try {
+            while (true) {
+                Frame frame = in.take();
+
+                try {
+                    process(stage, frame);
+                } catch (RuntimeException e) {
+                    frame.error = e;
+                    sinkQueue.put(frame);
+                    continue;
+                } catch (Error e) {
+                    // worker survives, otherwise the frame and close() would wait forever
+                    frame.error = new IllegalStateException("stage " + stage + " failed on frame " + frame.seq, e);
+                    sinkQueue.put(frame);
+                    continue;
+                }
+
+                pass(frame, out);
+            }
+        } catch (InterruptedException e) {
+            // pipeline is closed
+        }
+    }
+
+    private void process(Stage stage, Frame frame) {
+        switch (stage) {
+            case DECODE:
+                frame.image = Highgui.imread(frame.filename);
+
+                if (frame.image.empty()) {
+                    throw new IllegalArgumentException("image " + frame.filename + " can not be read");
+                }
+                break;
+            case MASK:
+                frame.filtered = recognizer.maskFilter(frame.image, mask, nbins, maxValue);
+                break;
+            case CONTOURS:
+                frame.detections = recognizer.findBodies(frame.filtered);
+                break;
+            case HOG:
+                List<Detection> detections = new ArrayList<>(frame.detections.size());
+
+                for (Detection body : frame.detections) {
+                    detections.add(recognizer.describe(frame.filtered, body));
+                }
+
+                frame.detections = detections;
+                break;
+            case PREDICT:
+                List<Mat> features = new ArrayList<>(frame.detections.size());
+
+                for (Detection detection : frame.detections) {
+                    features.add(detection.features);
+                }
+
+                frame.labels = recognizer.predictBatch(features, null, false);
+                break;
+        }
+    }
+
+    /**
+     * Passes frame to next queue according to backpressure policy.
+     */
+    private boolean pass(Frame frame, BlockingQueue<Frame> out) throws InterruptedException {
+        if (backpressure == Backpressure.BLOCK || out == sinkQueue) {
+            out.put(frame);
+            return true;
+        }
+
+        if (out.offer(frame)) {
+            return true;
+        }
+
+        frame.dropped = true;
+        sinkQueue.put(frame);
+        return false;
+    }
+
+    /**
+     * Hands frames to sink in order of submission.
+     */
+    private void deliver() {
+        try {
+            while (true) {
+                Frame frame = sinkQueue.take();
+                pending.put(frame.seq, frame);
+
+                long next;
+
+                synchronized (this) {
+                    next = delivered;
+                }
+
+                while ((frame = pending.remove(next)) != null) {
+                    try {
+                        sink.accept(frame);
+                    } catch (RuntimeException | Error e) {
+                        System.err.println("sink failed on frame " + frame.seq + ": " + e);
+                    } finally {
+                        frame.release();
+                    }
+
+                    next++;
+
+                    synchronized (this) {
+                        delivered = next;
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // pipeline is closed
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
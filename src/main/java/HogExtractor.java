@@ -0,0 +1,244 @@
+import java.util.Arrays;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+
+/**
+ * Computes histogram of oriented gradients of images of one fixed size.
+ * 
+ * Extractor owns all buffers needed for the computation, they are allocated
+ * once in the constructor. Gradients and orientation binning are done in one
+ * pass over pixels. Norms of blocks are taken from integral table of energy
+ * of cell histograms, so every block costs the same regardless of overlap.
+ * Computing features into caller's buffer does not allocate anything.
+ * 
+ * Instance is not thread-safe, every thread needs its own one.
+ */
+public class HogExtractor {
+
+    // regularization of block norm
+    private static final double squareE = 0.01 * 0.01;
+
+    private final HogLayout layout;
+    private final int maxDeg;
+
+    // workspace
+    private final byte[] pixels;
+    private final float[] cellHist;
+    private final double[] integral;
+    private final float[] row;
+    private final Mat gray = new Mat();
+
+    /**
+     * @param height        height of examined images
+     * @param width         width of examined images
+     * @param sizeCell      size of cell in pixels
+     * @param sizeBlock     size of block in cells
+     * @param nbins         number of orientation bins
+     * @param maxDeg        range of orientations in degrees, 360 for signed gradients
+     */
+    public HogExtractor(int height, int width, int sizeCell, int sizeBlock, int nbins, int maxDeg) {
+        this(HogLayout.of(height, width, sizeCell, sizeBlock, sizeBlock, nbins), maxDeg);
+    }
+
+    /**
+     * @param layout    geometry of features
+     * @param maxDeg    range of orientations in degrees, 360 for signed gradients
+     */
+    public HogExtractor(HogLayout layout, int maxDeg) {
+        this.layout = layout;
+        this.maxDeg = maxDeg;
+
+        pixels = new byte[layout.height * layout.width];
+        cellHist = new float[layout.cellsY * layout.cellsX * layout.nbins];
+        integral = new double[(layout.cellsY + 1) * (layout.cellsX + 1)];
+        row = new float[layout.length];
+    }
+
+    /**
+     * Geometry of computed features.
+     * @return  layout
+     */
+    public HogLayout layout() {
+        return layout;
+    }
+
+    /**
+     * Checks whether extractor is made for given layout.
+     * @param layout    layout of features
+     * @return          true if layout is the same
+     */
+    public boolean accepts(HogLayout layout) {
+        return this.layout == layout;
+    }
+
+    /**
+     * Number of features computed from one image.
+     * @return  length of feature vector
+     */
+    public int length() {
+        return layout.length;
+    }
+
+    /**
+     * Computes features into a new matrix.
+     * @param img   image
+     * @return      features, matrix of size 1 x length()
+     */
+    public Mat compute(Mat img) {
+        Mat features = new Mat(1, layout.length, CvType.CV_32FC1);
+        compute(img, features, 0);
+        return features;
+    }
+
+    /**
+     * Computes features into given row of matrix of type CV_32FC1.
+     * @param img   image
+     * @param dst   destination matrix with length() columns
+     * @param r     index of row
+     */
+    public void compute(Mat img, Mat dst, int r) {
+        compute(img, row, 0);
+        dst.put(r, 0, row);
+    }
+
+    /**
+     * Computes features into given buffer.
+     * @param img       image
+     * @param dst       destination buffer
+     * @param offset    position of first feature in buffer
+     */
+    public void compute(Mat img, float[] dst, int offset) {
+        readPixels(img);
+        binGradients();
+        integrateEnergy();
+        normalizeBlocks(dst, offset);
+    }
+
+    /**
+     * Copies image to workspace as 8-bit grayscale.
+     */
+    private void readPixels(Mat img) {
+        if (img.rows() != layout.height || img.cols() != layout.width) {
+            throw new IllegalArgumentException("image " + img.cols() + "x" + img.rows() + " differs from " + layout.width + "x" + layout.height);
+        }
+
+        Mat src = img;
+
+        if (src.channels() > 1) {
+            Imgproc.cvtColor(src, gray, Imgproc.COLOR_BGR2GRAY);
+            src = gray;
+        }
+
+        if (src.depth() != CvType.CV_8U) {
+            src.convertTo(gray, CvType.CV_8U);
+            src = gray;
+        }
+
+        src.get(0, 0, pixels);
+    }
+
+    /**
+     * Computes gradients and adds their magnitudes to histograms of cells.
+     * Gradient is central difference, border pixels are reflected as in
+     * filtering with kernel [-1 0 1].
+     */
+    private void binGradients() {
+        Arrays.fill(cellHist, 0f);
+
+        int height = layout.height;
+        int width = layout.width;
+        int nbins = layout.nbins;
+        float binScale = (float) nbins / maxDeg;
+
+        for (int y = 0; y < layout.coveredRows(); y++) {
+            int up = y == 0 ? 1 : y - 1;
+            int down = y == height - 1 ? height - 2 : y + 1;
+            int cellRow = layout.cellRow(y);
+
+            for (int x = 0; x < layout.coveredCols(); x++) {
+                int left = x == 0 ? 1 : x - 1;
+                int right = x == width - 1 ? width - 2 : x + 1;
+
+                float dx = (pixels[y * width + right] & 0xFF) - (pixels[y * width + left] & 0xFF);
+                float dy = (pixels[down * width + x] & 0xFF) - (pixels[up * width + x] & 0xFF);
+
+                if (dx == 0 && dy == 0) {
+                    continue;
+                }
+
+                float mag = (float) Math.sqrt(dx * dx + dy * dy);
+                float deg = (float) Math.toDegrees(Math.atan2(dy, dx));
+
+                if (deg < 0) {
+                    deg += 360;
+                }
+
+                int bin = (int) ((deg % maxDeg) * binScale);
+
+                if (bin >= nbins) {
+                    bin = nbins - 1;
+                }
+
+                cellHist[(cellRow + layout.cellCol(x)) * nbins + bin] += mag;
+            }
+        }
+    }
+
+    /**
+     * Builds integral table of squared values of cell histograms.
+     */
+    private void integrateEnergy() {
+        int cellsX = layout.cellsX;
+        int nbins = layout.nbins;
+        int stride = cellsX + 1;
+
+        for (int cy = 0; cy < layout.cellsY; cy++) {
+            double rowSum = 0;
+
+            for (int cx = 0; cx < cellsX; cx++) {
+                int start = (cy * cellsX + cx) * nbins;
+
+                for (int i = start; i < start + nbins; i++) {
+                    rowSum += cellHist[i] * cellHist[i];
+                }
+
+                integral[(cy + 1) * stride + cx + 1] = integral[cy * stride + cx + 1] + rowSum;
+            }
+        }
+    }
+
+    /**
+     * Writes histograms of cells block by block, each block normalized
+     * according to L2-norm.
+     */
+    private void normalizeBlocks(float[] dst, int offset) {
+        int cellsX = layout.cellsX;
+        int sizeBlock = layout.sizeBlock;
+        int nbins = layout.nbins;
+        int stride = cellsX + 1;
+        int pos = offset;
+
+        for (int b = 0; b < layout.blocks(); b++) {
+            int cell = layout.blockCell(b);
+            int y0 = cell / cellsX;
+            int x0 = cell % cellsX;
+            int y1 = y0 + sizeBlock;
+            int x1 = x0 + sizeBlock;
+
+            double sum = integral[y1 * stride + x1] - integral[y0 * stride + x1]
+                    - integral[y1 * stride + x0] + integral[y0 * stride + x0];
+
+            float scale = (float) (1 / Math.sqrt(Math.max(sum, 0) + squareE));
+
+            for (int cy = y0; cy < y1; cy++) {
+                int start = (cy * cellsX + x0) * nbins;
+
+                for (int i = start; i < start + sizeBlock * nbins; i++) {
+                    dst[pos++] = cellHist[i] * scale;
+                }
+            }
+        }
+    }
+}
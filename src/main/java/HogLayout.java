@@ -0,0 +1,159 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Immutable geometry of HOG features computed from window of fixed size.
+ * 
+ * Window is divided into cells, cells are grouped into blocks of
+ * sizeBlock x sizeBlock cells. Blocks are placed with given stride, stride
+ * smaller than size of block gives overlapping blocks. All offsets are
+ * computed once, layouts are cached and shared between threads.
+ */
+public final class HogLayout {
+
+    private static final ConcurrentMap<List<Integer>, HogLayout> cache = new ConcurrentHashMap<>();
+
+    public final int height;
+    public final int width;
+    public final int sizeCell;
+    public final int sizeBlock;
+    public final int blockStride;
+    public final int nbins;
+
+    // number of cells and blocks in both directions
+    public final int cellsY;
+    public final int cellsX;
+    public final int blocksY;
+    public final int blocksX;
+
+    // length of feature vector
+    public final int length;
+
+    // index of cell column of every pixel column
+    private final int[] cellOfX;
+
+    // index of first cell of cell row of every pixel row
+    private final int[] cellOfY;
+
+    // index of top left cell of every block
+    private final int[] blockCells;
+
+    private HogLayout(int height, int width, int sizeCell, int sizeBlock, int blockStride, int nbins) {
+        if (sizeCell <= 0 || sizeBlock <= 0 || blockStride <= 0 || nbins <= 0) {
+            throw new IllegalArgumentException("sizes of cell, block, stride and number of bins must be positive");
+        }
+
+        this.height = height;
+        this.width = width;
+        this.sizeCell = sizeCell;
+        this.sizeBlock = sizeBlock;
+        this.blockStride = blockStride;
+        this.nbins = nbins;
+
+        cellsY = height / sizeCell;
+        cellsX = width / sizeCell;
+
+        if (cellsY < sizeBlock || cellsX < sizeBlock) {
+            throw new IllegalArgumentException("window " + width + "x" + height + " is smaller than one block");
+        }
+
+        blocksY = (cellsY - sizeBlock) / blockStride + 1;
+        blocksX = (cellsX - sizeBlock) / blockStride + 1;
+        length = blocksY * blocksX * sizeBlock * sizeBlock * nbins;
+
+        cellOfX = new int[cellsX * sizeCell];
+        for (int x = 0; x < cellOfX.length; x++) {
+            cellOfX[x] = x / sizeCell;
+        }
+
+        cellOfY = new int[cellsY * sizeCell];
+        for (int y = 0; y < cellOfY.length; y++) {
+            cellOfY[y] = (y / sizeCell) * cellsX;
+        }
+
+        blockCells = new int[blocksY * blocksX];
+        for (int by = 0; by < blocksY; by++) {
+            for (int bx = 0; bx < blocksX; bx++) {
+                blockCells[by * blocksX + bx] = by * blockStride * cellsX + bx * blockStride;
+            }
+        }
+    }
+
+    /**
+     * Gets layout of given geometry, layout is created only once.
+     * @param height        height of window
+     * @param width         width of window
+     * @param sizeCell      size of cell in pixels
+     * @param sizeBlock     size of block in cells
+     * @param blockStride   distance of neighbouring blocks in cells
+     * @param nbins         number of orientation bins
+     * @return              layout
+     */
+    public static HogLayout of(int height, int width, int sizeCell, int sizeBlock, int blockStride, int nbins) {
+        List<Integer> key = Arrays.asList(height, width, sizeCell, sizeBlock, blockStride, nbins);
+
+        return cache.computeIfAbsent(key, k -> new HogLayout(height, width, sizeCell, sizeBlock, blockStride, nbins));
+    }
+
+    /**
+     * Number of pixel rows covered by cells.
+     * @return  number of rows
+     */
+    public int coveredRows() {
+        return cellOfY.length;
+    }
+
+    /**
+     * Number of pixel columns covered by cells.
+     * @return  number of columns
+     */
+    public int coveredCols() {
+        return cellOfX.length;
+    }
+
+    /**
+     * Index of first cell of the cell row containing given pixel row.
+     * @param y     row of pixel, smaller than coveredRows()
+     * @return      index of cell in row-major order
+     */
+    public int cellRow(int y) {
+        return cellOfY[y];
+    }
+
+    /**
+     * Index of cell column containing given pixel column.
+     * @param x     column of pixel, smaller than coveredCols()
+     * @return      column of cell
+     */
+    public int cellCol(int x) {
+        return cellOfX[x];
+    }
+
+    /**
+     * Number of blocks.
+     * @return  number of blocks
+     */
+    public int blocks() {
+        return blockCells.length;
+    }
+
+    /**
+     * Index of top left cell of given block.
+     * @param block     index of block in row-major order
+     * @return          index of cell in row-major order
+     */
+    public int blockCell(int block) {
+        return blockCells[block];
+    }
+
+    /**
+     * Geometry of the layout, used to validate stored features.
+     * @return  height, width, sizeCell, sizeBlock, blockStride, nbins
+     */
+    public int[] geometry() {
+        return new int[] {height, width, sizeCell, sizeBlock, blockStride, nbins};
+    }
+}
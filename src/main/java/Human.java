@@ -1,19 +1,52 @@
-
 import org.opencv.core.Point;
-import java.util.List;
 
 
 public class Human {
 
+    static final int defaultHistory = 1024; // number of remembered positions
+
     private final int id; // id of human
-    private Point currentPos; // actual position
+    private double x; // actual position
+    private double y;
     private boolean gender; // 0 male, 1 female
-    private List<Point> allPos; // log of all positions
+
+    // log of last positions, ring buffer
+    private final double[] allX;
+    private final double[] allY;
+    private int next = 0; // position of next entry
+    private int count = 0; // number of valid entries
+
+    private int missed = 0; // number of frames without detection
 
     public Human(int id, double x, double y) {
+        this(id, x, y, defaultHistory);
+    }
+
+    public Human(int id, double x, double y, int history) {
         this.id = id;
-        this.currentPos.x = x;
-        this.currentPos.y = y;
+        this.allX = new double[history];
+        this.allY = new double[history];
+        addPosition(x, y);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public Point getPosition() {
+        return new Point(x, y);
+    }
+
+    public boolean getGender() {
+        return gender;
     }
 
     public void setGender(boolean gender) {
@@ -22,11 +55,56 @@ public class Human {
     
     public void addPosition(double x, double y) {
         // change current position
-        this.currentPos.x = x;
-        this.currentPos.y = y;
+        this.x = x;
+        this.y = y;
+        this.missed = 0;
         
-        // add position to log
-        Point p = new Point(x, y);
-        this.allPos.add(p);
+        // add position to log, the oldest one is overwritten
+        allX[next] = x;
+        allY[next] = y;
+        next = (next + 1) % allX.length;
+        count = Math.min(count + 1, allX.length);
+    }
+
+    /**
+     * Number of remembered positions.
+     * @return  size of log
+     */
+    public int historySize() {
+        return count;
+    }
+
+    /**
+     * Gets remembered position, 0 is the oldest one.
+     * @param i     index of position
+     * @return      x coordinate
+     */
+    public double historyX(int i) {
+        return allX[index(i)];
+    }
+
+    /**
+     * Gets remembered position, 0 is the oldest one.
+     * @param i     index of position
+     * @return      y coordinate
+     */
+    public double historyY(int i) {
+        return allY[index(i)];
+    }
+
+    int missed() {
+        return missed;
+    }
+
+    void miss() {
+        missed++;
+    }
+
+    private int index(int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("position " + i + " of " + count);
+        }
+
+        return (next - count + i + allX.length) % allX.length;
     }
-}
\ No newline at end of file
+}
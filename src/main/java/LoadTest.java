@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Load test of RecognitionServer. Sends the same request body from given
+ * number of concurrent clients and reports latency and throughput.
+ * 
+ * Usage: LoadTest url body-file [clients requests]
+ * e.g. LoadTest http://localhost:8080/orientation/features rows.csv 32 10000
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("usage: LoadTest url body-file [clients requests]");
+            System.exit(1);
+        }
+
+        URI uri = URI.create(args[0]);
+        byte[] body = Files.readAllBytes(Paths.get(args[1]));
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+        String type = args[1].endsWith(".csv") || args[1].endsWith(".txt") ? "text/plain" : "application/octet-stream";
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .header("Content-Type", type)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+
+        // warm up server and connections
+        for (int i = 0; i < Math.min(requests, 100); i++) {
+            client.send(request, HttpResponse.BodyHandlers.discarding());
+        }
+
+        long[] latencies = new long[requests];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+
+        for (int t = 0; t < clients; t++) {
+            threads[t] = new Thread(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < requests) {
+                    long begin = System.nanoTime();
+
+                    try {
+                        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+                        if (response.statusCode() != 200) {
+                            errors.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    latencies[i] = System.nanoTime() - begin;
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Arrays.sort(latencies);
+
+        System.out.printf(Locale.ROOT, "requests=%d clients=%d errors=%d%n", requests, clients, errors.get());
+        System.out.printf(Locale.ROOT, "throughput=%.1f req/s%n", requests / seconds);
+        System.out.printf(Locale.ROOT, "p50=%.3fms p99=%.3fms max=%.3fms%n",
+                quantile(latencies, 0.5) / 1e6, quantile(latencies, 0.99) / 1e6, latencies[requests - 1] / 1e6);
+    }
+
+    /**
+     * Quantile of sorted values.
+     * @param sorted    values in ascending order
+     * @param q         quantile between 0 and 1
+     * @return          value
+     */
+    static long quantile(long[] sorted, double q) {
+        int i = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+}
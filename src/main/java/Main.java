@@ -3,7 +3,6 @@
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.Rect;
 import org.opencv.highgui.Highgui;
 
 import java.io.IOException;
@@ -45,11 +44,13 @@ public class Main {
         
         // IMAGE PREPROCESSING
         Mat filt = orientation.maskFilter(img, mask, nbins, maxValue);
-        orientation.detect(filt, nbins, maxValue);
+        List<Detection> persons = orientation.detect(filt, nbins, maxValue);
         
         // USE MODEL
-        float direction = orientation.predict(orientation.hogFeatures);
-        System.out.println(direction);
+        for (Detection person : persons) {
+            float direction = orientation.predict(person);
+            System.out.println(direction);
+        }
         
         ////////////////////////////////////////////////////////////////////////
         
@@ -57,26 +58,14 @@ public class Main {
         Mat img2 = Highgui.imread(imgFilename, CvType.CV_8U); 
         
         // GENDER
-        Recognizer gender = new Recognizer();
         int imgSize = 71;
-        gender.paddHeightMax = imgSize;
-        gender.paddWidthMax = imgSize;
+        Recognizer gender = new Recognizer(RecognizerConfig.builder().padding(imgSize, imgSize).build());
         
         // CREATE AND SAVE MODEL
         gender.createModel("/path/to/training/images/");
         
-        int cellSize = 6;
-        int blockSize = 3;
-        nbins = 9;
-        
-        // create cells
-        List<Rect> cells = gender.genBlocks(imgSize, imgSize, cellSize, cellSize);
-
-        // create blocks
-        List<Rect> blocks = gender.genBlocks((int) Math.floor(imgSize / cellSize), (int) Math.floor(imgSize / cellSize)  *  nbins, blockSize, blockSize * nbins);
-        
         // USE MODEL
-        float g = gender.predict(gender.hog(img2, cells, blocks));
+        float g = gender.predict(gender.hog(img2));
         System.out.println(g);
         
         ////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,441 @@
+import java.io.PrintStream;
+import java.lang.ref.Cleaner;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.opencv.core.Mat;
+
+
+/**
+ * Arena of temporary matrices which frees native memory deterministically.
+ * 
+ * Matrices are handed out inside scopes opened by open(). When a scope is
+ * closed, matrices taken from pool go back to it and other registered
+ * matrices are released, so nothing waits for finalizers. Pooled matrices
+ * are recycled by size and type across frames. Free matrices of all arenas
+ * together take at most maxPoolBytes, the least recently used sizes are
+ * released first. Pool is released when the arena is closed or, for arenas
+ * owned by threads, when the arena becomes unreachable. Arena must be used
+ * only by one thread, scopes can be nested.
+ * 
+ * Debug mode is enabled by system property recognizer.matDebug=true. Arenas
+ * which are not closed are then reported with place of their creation.
+ */
+public final class MatArena implements AutoCloseable {
+
+    static final boolean debug = Boolean.getBoolean("recognizer.matDebug");
+
+    // maximum number of free matrices of one size and type kept in pool
+    static final int maxPooled = 4;
+
+    // maximum size of free matrices kept by all arenas
+    static final long maxPoolBytes = Long.getLong("recognizer.matPoolBytes", 64L << 20);
+
+    // matrices allocated by all arenas and not released yet
+    private static final LongAdder live = new LongAdder();
+    private static final LongAdder liveBytes = new LongAdder();
+
+    // free matrices kept by all arenas
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    // arenas not closed yet with place of creation, only in debug mode
+    private static final Map<Integer, Throwable> openArenas = new ConcurrentHashMap<>();
+    private static final Cleaner cleaner = Cleaner.create();
+    private static int nextId;
+
+    // matrices of open scopes, stack of entries
+    private Mat[] used = new Mat[16];
+    private Key[] keys = new Key[16]; // requested size of pooled matrix, null if not pooled
+    private long[] bytes = new long[16];
+    private int top;
+
+    private final Pool pool;
+    private final Cleaner.Cleanable cleanable;
+    private boolean closed;
+
+    /**
+     * Creates arena which is expected to be closed.
+     */
+    public MatArena() {
+        this(debug);
+    }
+
+    /**
+     * @param report    report arena which becomes unreachable without close
+     */
+    private MatArena(boolean report) {
+        int id = -1;
+
+        if (report) {
+            synchronized (MatArena.class) {
+                id = nextId++;
+            }
+
+            openArenas.put(id, new Throwable("arena " + id + " created here"));
+        }
+
+        pool = new Pool(id);
+        cleanable = cleaner.register(this, pool);
+    }
+
+    /**
+     * Creates arena owned by thread, e.g. kept in ThreadLocal. It is not
+     * expected to be closed, its pool is released when it becomes unreachable.
+     * @return  arena
+     */
+    public static MatArena forThread() {
+        return new MatArena(false);
+    }
+
+    /**
+     * Opens new scope, matrices taken in the scope are returned when it is closed.
+     * @return  scope
+     */
+    public Scope open() {
+        if (closed) {
+            throw new IllegalStateException("arena is closed");
+        }
+
+        return new Scope(top);
+    }
+
+    /**
+     * Returns all matrices of scopes not closed yet and releases all pooled matrices.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        unwind(0);
+        closed = true;
+
+        if (pool.id >= 0) {
+            openArenas.remove(pool.id);
+        }
+
+        cleanable.clean();
+    }
+
+    /**
+     * Number of free matrices kept in pool.
+     * @return  number of matrices
+     */
+    public int pooled() {
+        int n = 0;
+
+        for (ArrayDeque<Mat> mats : pool.free.values()) {
+            n += mats.size();
+        }
+
+        return n;
+    }
+
+    /**
+     * Number of matrices handed out by open scopes.
+     * @return  number of matrices
+     */
+    public int inUse() {
+        return top;
+    }
+
+    /**
+     * Number of matrices allocated by all arenas and not released yet.
+     * @return  number of matrices
+     */
+    public static long live() {
+        return live.sum();
+    }
+
+    /**
+     * Native memory of matrices allocated by all arenas and not released yet.
+     * Size of matrices reallocated by OpenCV is counted when they are released.
+     * @return  size in bytes
+     */
+    public static long liveBytes() {
+        return liveBytes.sum();
+    }
+
+    /**
+     * Native memory of free matrices kept in pools of all arenas.
+     * @return  size in bytes
+     */
+    public static long pooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Prints number of live matrices and, in debug mode, arenas which are not closed.
+     * @param out   output stream
+     */
+    public static void report(PrintStream out) {
+        out.println("live matrices: " + live() + ", " + liveBytes() + " B, pooled " + pooledBytes() + " B");
+
+        for (Throwable site : openArenas.values()) {
+            site.printStackTrace(out);
+        }
+    }
+
+    private void push(Mat m, Key key) {
+        if (top == used.length) {
+            used = Arrays.copyOf(used, top * 2);
+            keys = Arrays.copyOf(keys, top * 2);
+            bytes = Arrays.copyOf(bytes, top * 2);
+        }
+
+        used[top] = m;
+        keys[top] = key;
+        bytes[top] = size(m);
+        top++;
+    }
+
+    /**
+     * Returns matrices above given mark to pool or releases them.
+     */
+    private void unwind(int mark) {
+        while (top > mark) {
+            top--;
+            Mat m = used[top];
+            Key key = keys[top];
+            used[top] = null;
+            keys[top] = null;
+
+            if (m == null) {
+                continue; // kept by caller
+            }
+
+            // account size changed by OpenCV
+            long size = size(m);
+            liveBytes.add(size - bytes[top]);
+
+            // matrix reallocated by OpenCV to other size is not pooled
+            if (key == null || closed || !key.matches(m) || !pool.put(key, m, size)) {
+                release(m, size);
+            }
+        }
+    }
+
+    private static void release(Mat m, long size) {
+        m.release();
+        live.decrement();
+        liveBytes.add(-size);
+    }
+
+    private static long size(Mat m) {
+        return m.total() * m.elemSize();
+    }
+
+    /**
+     * Size and type of pooled matrix.
+     */
+    private static final class Key {
+        final int rows;
+        final int cols;
+        final int type;
+
+        Key(int rows, int cols, int type) {
+            this.rows = rows;
+            this.cols = cols;
+            this.type = type;
+        }
+
+        boolean matches(Mat m) {
+            return m.rows() == rows && m.cols() == cols && m.type() == type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key k = (Key) o;
+            return rows == k.rows && cols == k.cols && type == k.type;
+        }
+
+        @Override
+        public int hashCode() {
+            return (rows * 31 + cols) * 31 + type;
+        }
+    }
+
+    /**
+     * Free matrices of one arena in order from the least recently used size.
+     * Runs as cleaning action, when arena is closed or unreachable.
+     */
+    private static final class Pool implements Runnable {
+        final int id; // id of reported arena, -1 if not reported
+        final LinkedHashMap<Key, ArrayDeque<Mat>> free = new LinkedHashMap<>(16, 0.75f, true);
+
+        Pool(int id) {
+            this.id = id;
+        }
+
+        /**
+         * Takes matrix from pool or allocates new one.
+         */
+        Mat take(Key key) {
+            ArrayDeque<Mat> mats = free.get(key);
+            Mat m = mats != null ? mats.pollLast() : null;
+
+            if (m != null) {
+                pooledBytes.addAndGet(-size(m));
+                return m;
+            }
+
+            m = new Mat(key.rows, key.cols, key.type);
+            live.increment();
+            liveBytes.add(size(m));
+            return m;
+        }
+
+        /**
+         * Puts matrix to pool, releases the least recently used sizes to fit the limit.
+         * @return  false if matrix does not fit to pool
+         */
+        boolean put(Key key, Mat m, long size) {
+            ArrayDeque<Mat> mats = free.computeIfAbsent(key, k -> new ArrayDeque<>());
+
+            if (mats.size() >= maxPooled) {
+                return false;
+            }
+
+            Iterator<ArrayDeque<Mat>> eldest = free.values().iterator();
+
+            while (pooledBytes.get() + size > maxPoolBytes && eldest.hasNext()) {
+                ArrayDeque<Mat> e = eldest.next();
+
+                if (e == mats) {
+                    continue;
+                }
+
+                for (Mat old : e) {
+                    long s = size(old);
+                    pooledBytes.addAndGet(-s);
+                    release(old, s);
+                }
+
+                eldest.remove();
+            }
+
+            if (pooledBytes.get() + size > maxPoolBytes) {
+                return false;
+            }
+
+            pooledBytes.addAndGet(size);
+            mats.addLast(m);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            if (id >= 0 && openArenas.remove(id) != null) {
+                System.err.println("arena " + id + " was not closed");
+            }
+
+            for (ArrayDeque<Mat> mats : free.values()) {
+                for (Mat m : mats) {
+                    long s = size(m);
+                    pooledBytes.addAndGet(-s);
+                    release(m, s);
+                }
+            }
+
+            free.clear();
+        }
+    }
+
+    /**
+     * Scope of temporary matrices.
+     */
+    public final class Scope implements AutoCloseable {
+
+        private final int mark;
+
+        private Scope(int mark) {
+            this.mark = mark;
+        }
+
+        /**
+         * Gets matrix of given size and type from pool, content is undefined.
+         * Use it for workspaces of fixed size, see temp for varying sizes.
+         * @param rows  number of rows
+         * @param cols  number of columns
+         * @param type  type of matrix
+         * @return      matrix valid until scope is closed
+         */
+        public Mat mat(int rows, int cols, int type) {
+            Key key = new Key(rows, cols, type);
+            Mat m = pool.take(key);
+            push(m, key);
+            return m;
+        }
+
+        /**
+         * Allocates matrix released when scope is closed, it is not pooled.
+         * Use it for matrices whose size changes with every call, e.g. of
+         * size of region of interest.
+         * @param rows  number of rows
+         * @param cols  number of columns
+         * @param type  type of matrix
+         * @return      matrix valid until scope is closed
+         */
+        public Mat temp(int rows, int cols, int type) {
+            return track(new Mat(rows, cols, type));
+        }
+
+        /**
+         * Gets empty matrix used as output of OpenCV functions. Size of
+         * output is not known in advance, so it is not pooled.
+         * @return  matrix valid until scope is closed
+         */
+        public Mat mat() {
+            return track(new Mat());
+        }
+
+        /**
+         * Registers matrix created elsewhere, it is released when scope is closed.
+         * @param m     matrix
+         * @return      the same matrix
+         */
+        public <T extends Mat> T track(T m) {
+            live.increment();
+            liveBytes.add(size(m));
+            push(m, null);
+            return m;
+        }
+
+        /**
+         * Removes matrix from scope, caller is responsible for its release.
+         * @param m     matrix taken from this scope
+         * @return      the same matrix
+         */
+        public <T extends Mat> T keep(T m) {
+            for (int i = top - 1; i >= mark; i--) {
+                if (used[i] == m) {
+                    used[i] = null;
+                    keys[i] = null;
+                    live.decrement();
+                    liveBytes.add(-bytes[i]);
+                    return m;
+                }
+            }
+
+            throw new IllegalArgumentException("matrix does not belong to scope");
+        }
+
+        /**
+         * Returns matrices of scope and of all nested scopes.
+         */
+        @Override
+        public void close() {
+            unwind(mark);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import org.opencv.core.Mat;
+
+
+/**
+ * Timers and counters of recognition stages.
+ * 
+ * Metrics are enabled by system property recognizer.metrics=true. The flag
+ * is a constant, so disabled metrics cost only a check which JIT removes.
+ * Timers record into histograms with power of two buckets, all updates are
+ * lock-free.
+ */
+public final class Metrics {
+
+    public static final boolean enabled = Boolean.getBoolean("recognizer.metrics");
+
+    private static final List<Timer> timers = new ArrayList<>();
+    private static final List<Counter> counters = new ArrayList<>();
+
+    // stages
+    public static final Timer maskFilter = timer("mask_filter", "background filtering");
+    public static final Timer medianBlur = timer("median_blur", "median filter of detection");
+    public static final Timer findContours = timer("find_contours", "thresholding and contour finding");
+    public static final Timer padding = timer("padding", "padding of detected bodies");
+    public static final Timer hog = timer("hog", "HOG features of one window");
+    public static final Timer predict = timer("predict", "SVM prediction of one sample");
+    public static final Timer request = timer("request", "request of recognition service");
+
+    // counts
+    public static final Counter contoursFound = counter("contours_found", "contours found in frames");
+    public static final Counter contoursRejected = counter("contours_rejected", "contours smaller than minShapeSize");
+    public static final Counter matBytes = counter("mat_bytes_allocated", "bytes of native Mats allocated");
+    public static final Counter cacheHits = counter("cache_hits", "lookups found in feature cache");
+    public static final Counter cacheMisses = counter("cache_misses", "lookups missing in feature cache");
+    public static final Counter batches = counter("batches", "micro-batches predicted by service");
+    public static final Counter batchedSamples = counter("batched_samples", "samples predicted in micro-batches");
+
+    private Metrics() {
+    }
+
+    /**
+     * Starts measuring of time.
+     * @return  start time, 0 if metrics are disabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Adds size of newly allocated matrices to counter.
+     * @param mats  allocated matrices
+     */
+    public static void allocated(Mat... mats) {
+        if (enabled) {
+            for (Mat m : mats) {
+                matBytes.add(m.total() * m.elemSize());
+            }
+        }
+    }
+
+    /**
+     * All timers.
+     * @return  unmodifiable list
+     */
+    public static List<Timer> timers() {
+        return Collections.unmodifiableList(timers);
+    }
+
+    /**
+     * All counters.
+     * @return  unmodifiable list
+     */
+    public static List<Counter> counters() {
+        return Collections.unmodifiableList(counters);
+    }
+
+    private static Timer timer(String name, String help) {
+        Timer t = new Timer(name, help);
+        timers.add(t);
+        return t;
+    }
+
+    private static Counter counter(String name, String help) {
+        Counter c = new Counter(name, help);
+        counters.add(c);
+        return c;
+    }
+
+    /**
+     * Latency histogram, bucket i holds durations from 2^(i-1) to 2^i ns.
+     */
+    public static final class Timer {
+        public static final int buckets = 64;
+
+        public final String name;
+        public final String help;
+
+        private final AtomicLongArray histogram = new AtomicLongArray(buckets);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private Timer(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        /**
+         * Records time elapsed from start.
+         * @param start     value returned by Metrics.start()
+         */
+        public void stop(long start) {
+            if (enabled) {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Records duration.
+         * @param nanos     duration in nanoseconds
+         */
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+
+            histogram.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+            count.increment();
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long sumNanos() {
+            return sum.sum();
+        }
+
+        public long maxNanos() {
+            return max.get();
+        }
+
+        /**
+         * Number of durations in bucket.
+         * @param i     index of bucket
+         * @return      count
+         */
+        public long bucket(int i) {
+            return histogram.get(i);
+        }
+
+        /**
+         * Upper estimate of quantile of durations.
+         * @param q     quantile from 0 to 1
+         * @return      duration in nanoseconds
+         */
+        public long quantileNanos(double q) {
+            long total = 0;
+            long[] copy = new long[buckets];
+
+            for (int i = 0; i < buckets; i++) {
+                copy[i] = histogram.get(i);
+                total += copy[i];
+            }
+
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+
+            for (int i = 0; i < buckets; i++) {
+                seen += copy[i];
+
+                if (seen >= rank && seen > 0) {
+                    return Math.min(1L << Math.min(i, 62), maxNanos());
+                }
+            }
+
+            return 0;
+        }
+    }
+
+    /**
+     * Monotonic counter.
+     */
+    public static final class Counter {
+        public final String name;
+        public final String help;
+
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void add(long n) {
+            if (enabled) {
+                value.add(n);
+            }
+        }
+
+        public void increment() {
+            add(1);
+        }
+
+        public long value() {
+            return value.sum();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Exports actual values of metrics.
+ */
+public interface MetricsExporter {
+
+    /**
+     * Exports snapshot of all metrics.
+     * @throws IOException 
+     */
+    void export() throws IOException;
+
+    /**
+     * Exporter printing summary of metrics, one line per metric.
+     * @param out   output stream, e.g. System.out
+     * @return      exporter
+     */
+    static MetricsExporter log(PrintStream out) {
+        return () -> out.print(summary());
+    }
+
+    /**
+     * Exporter replacing given file by Prometheus text format of metrics,
+     * usable by textfile collector of node exporter.
+     * @param file  output file
+     * @return      exporter
+     */
+    static MetricsExporter prometheusFile(Path file) {
+        return () -> {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, prometheus().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        };
+    }
+
+    /**
+     * Runs exporter periodically in background thread.
+     * @param period    period of export
+     * @param unit      unit of period
+     * @return          scheduler, shut it down to stop exporting
+     */
+    default ScheduledExecutorService every(long period, TimeUnit unit) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-exporter");
+            t.setDaemon(true);
+            return t;
+        });
+
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                export();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("export of metrics failed: " + e);
+            }
+        }, period, period, unit);
+
+        return scheduler;
+    }
+
+    /**
+     * Human readable summary of metrics.
+     * @return  text
+     */
+    static String summary() {
+        StringBuilder sb = new StringBuilder();
+
+        for (Metrics.Timer t : Metrics.timers()) {
+            long n = t.count();
+            sb.append(String.format(Locale.ROOT, "%-20s count=%d mean=%.3fms p50<=%.3fms p99<=%.3fms max=%.3fms%n",
+                    t.name, n, n == 0 ? 0.0 : t.sumNanos() / 1e6 / n,
+                    t.quantileNanos(0.5) / 1e6, t.quantileNanos(0.99) / 1e6, t.maxNanos() / 1e6));
+        }
+
+        for (Metrics.Counter c : Metrics.counters()) {
+            sb.append(String.format(Locale.ROOT, "%-20s %d%n", c.name, c.value()));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Metrics in Prometheus text exposition format.
+     * @return  text
+     */
+    static String prometheus() {
+        StringBuilder sb = new StringBuilder();
+
+        for (Metrics.Timer t : Metrics.timers()) {
+            String name = "recognizer_" + t.name + "_seconds";
+            sb.append("# HELP ").append(name).append(' ').append(t.help).append('\n');
+            sb.append("# TYPE ").append(name).append(" histogram\n");
+
+            // buckets up to 2^36 ns (about one minute)
+            long cumulative = 0;
+            for (int i = 0; i <= 36; i++) {
+                cumulative += t.bucket(i);
+                sb.append(String.format(Locale.ROOT, "%s_bucket{le=\"%.9f\"} %d%n", name, (1L << i) / 1e9, cumulative));
+            }
+
+            long count = t.count();
+            sb.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+            sb.append(String.format(Locale.ROOT, "%s_sum %.9f%n", name, t.sumNanos() / 1e9));
+            sb.append(name).append("_count ").append(count).append('\n');
+        }
+
+        for (Metrics.Counter c : Metrics.counters()) {
+            String name = "recognizer_" + c.name + "_total";
+            sb.append("# HELP ").append(name).append(' ').append(c.help).append('\n');
+            sb.append("# TYPE ").append(name).append(" counter\n");
+            sb.append(name).append(' ').append(c.value()).append('\n');
+        }
+
+        return sb.toString();
+    }
+}
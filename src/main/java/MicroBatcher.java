@@ -0,0 +1,211 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+
+/**
+ * Collects samples submitted by concurrent callers and predicts them together.
+ * 
+ * A batch is predicted when it has maxBatch samples or when the first sample
+ * of the batch has waited maxWait, whichever comes first. One prediction of
+ * many rows is cheaper than many predictions of one row, so under load the
+ * throughput grows while latency is bounded by maxWait plus the prediction.
+ */
+public class MicroBatcher implements Closeable {
+
+    /**
+     * Sample waiting for prediction.
+     */
+    private static final class Request {
+        final float[] row;
+        final CompletableFuture<Float> result = new CompletableFuture<>();
+
+        Request(float[] row) {
+            this.row = row;
+        }
+    }
+
+    private final Recognizer recognizer;
+    private final int cols;
+    private final int maxBatch;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Request> queue;
+    private final Thread worker;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates batcher and starts its worker thread.
+     * @param recognizer    recognizer with loaded model
+     * @param name          name of worker thread
+     * @param maxBatch      maximum number of samples in one batch
+     * @param maxWait       maximum waiting of the first sample for other samples
+     * @param unit          unit of maxWait
+     * @param capacity      maximum number of waiting samples, more are rejected
+     */
+    public MicroBatcher(Recognizer recognizer, String name, int maxBatch, long maxWait, TimeUnit unit, int capacity) {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("maxBatch must be positive: " + maxBatch);
+        }
+
+        if (maxWait < 0) {
+            throw new IllegalArgumentException("maxWait must not be negative: " + maxWait);
+        }
+
+        if (capacity < maxBatch) {
+            throw new IllegalArgumentException("capacity must be at least maxBatch: " + capacity);
+        }
+
+        this.recognizer = recognizer;
+        this.cols = recognizer.config().layout.length;
+        this.maxBatch = maxBatch;
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Length of accepted samples.
+     * @return  number of features
+     */
+    public int cols() {
+        return cols;
+    }
+
+    /**
+     * Submits sample for prediction.
+     * @param row   HOG features of one sample
+     * @return      future predicted class
+     * @throws IllegalArgumentException if sample has wrong length
+     * @throws RejectedExecutionException if batcher is closed or overloaded
+     */
+    public CompletableFuture<Float> submit(float[] row) {
+        if (row.length != cols) {
+            throw new IllegalArgumentException("sample has " + row.length + " values, expected " + cols);
+        }
+
+        Request request = new Request(row);
+
+        // close cannot run between check and offer, no sample is queued after the final drain
+        synchronized (this) {
+            if (closed) {
+                throw new RejectedExecutionException("batcher is closed");
+            }
+
+            if (!queue.offer(request)) {
+                throw new RejectedExecutionException("too many waiting samples");
+            }
+        }
+
+        return request.result;
+    }
+
+    /**
+     * Collects batches until batcher is closed and all samples are predicted.
+     */
+    private void run() {
+        List<Request> batch = new ArrayList<>(maxBatch);
+
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                long deadline = System.nanoTime() + maxWaitNanos;
+
+                // wait for other samples until batch is full or deadline passes
+                while (batch.size() < maxBatch) {
+                    long left = deadline - System.nanoTime();
+                    Request next = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+
+                    if (next == null) {
+                        break;
+                    }
+
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // closing, predict what is collected
+            }
+
+            predict(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Predicts batch and completes futures of its samples.
+     * @param batch     samples
+     */
+    private void predict(List<Request> batch) {
+        // samples of failed requests
+        batch.removeIf(r -> r.result.isCancelled());
+        int n = batch.size();
+
+        if (n == 0) {
+            return;
+        }
+
+        float[] values = new float[n * cols];
+
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(batch.get(i).row, 0, values, i * cols, cols);
+        }
+
+        Mat samples = new Mat(n, cols, CvType.CV_32FC1);
+
+        try {
+            samples.put(0, 0, values);
+            float[] labels = recognizer.predictBatch(samples, null, false);
+
+            for (int i = 0; i < n; i++) {
+                batch.get(i).result.complete(labels[i]);
+            }
+        } catch (RuntimeException e) {
+            for (Request r : batch) {
+                r.result.completeExceptionally(e);
+            }
+        } finally {
+            samples.release();
+        }
+
+        Metrics.batches.increment();
+        Metrics.batchedSamples.add(n);
+    }
+
+    /**
+     * Stops accepting samples, predicts already submitted ones and stops worker thread.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // samples left when waiting for worker was interrupted
+        Request r;
+        while ((r = queue.poll()) != null) {
+            r.result.completeExceptionally(new RejectedExecutionException("batcher is closed"));
+        }
+    }
+}
@@ -0,0 +1,28 @@
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Converts XML model of OpenCV to compact binary model.
+ * 
+ * Usage: ModelConverter model.xml model.bin
+ */
+public class ModelConverter {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: ModelConverter <model.xml> <model.bin>");
+            System.exit(1);
+        }
+
+        long start = System.currentTimeMillis();
+        SvmModel model = SvmModel.readXml(new File(args[0]));
+        model.writeBinary(new File(args[1]).toPath());
+
+        // read it back to check the written file
+        SvmModel.readBinary(new File(args[1]).toPath());
+
+        System.out.println("converted " + args[0] + " to " + args[1] + " (" + model.svTotal + " support vectors, "
+                + model.varCount + " features) in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Registry of trained models shared by all recognizers.
+ * 
+ * Every model file is loaded only once, on first prediction, and the loaded
+ * model is shared read-only between threads. Handle of model can be switched
+ * to a new version while other threads keep predicting.
+ */
+public final class ModelRegistry {
+
+    private static final ConcurrentMap<String, Handle> handles = new ConcurrentHashMap<>();
+
+    // XML models are predicted by OpenCV instead of SvmEngine
+    static final boolean nativeSvm = Boolean.getBoolean("recognizer.nativeSvm");
+
+    private ModelRegistry() {
+    }
+
+    /**
+     * Returns handle of model in given file, the model is not loaded yet.
+     * @param filename  path to XML model of OpenCV or to binary model (.bin)
+     * @return          shared handle
+     */
+    public static Handle get(String filename) {
+        return handles.computeIfAbsent(key(filename), Handle::new);
+    }
+
+    /**
+     * Forgets all handles, models in use stay valid.
+     */
+    public static void clear() {
+        handles.clear();
+    }
+
+    private static String key(String filename) {
+        try {
+            return new File(filename).getCanonicalPath();
+        } catch (IOException e) {
+            return new File(filename).getAbsolutePath();
+        }
+    }
+
+    /**
+     * Loads model from file. Models are predicted by SvmEngine, XML models
+     * are predicted by OpenCV if property recognizer.nativeSvm is set.
+     * Projection of features stored next to model is applied to samples.
+     */
+    static SvmPredictor load(String filename) throws IOException {
+        SvmPredictor svm;
+
+        if (filename.endsWith(".bin")) {
+            svm = new SvmEngine(SvmModel.readBinary(new File(filename).toPath()));
+        } else if (!new File(filename).isFile()) {
+            throw new IOException("model " + filename + " does not exist");
+        } else {
+            svm = nativeSvm ? NativeSvm.load(filename) : new SvmEngine(SvmModel.readXml(new File(filename)));
+        }
+
+        File pca = PcaProjection.fileOf(filename);
+        return pca.isFile() ? PcaProjection.read(pca).apply(svm) : svm;
+    }
+
+    /**
+     * Lazily loaded model which can be replaced by a new version.
+     */
+    public static final class Handle {
+
+        private final String filename;
+        private volatile String source;
+        private volatile SvmPredictor model;
+        private volatile int version;
+
+        private Handle(String filename) {
+            this.filename = filename;
+            this.source = filename;
+        }
+
+        /**
+         * Returns model, it is loaded by the first call.
+         * @return  model
+         * @throws UncheckedIOException if model can not be loaded
+         */
+        public SvmPredictor get() {
+            SvmPredictor m = model;
+
+            if (m == null) {
+                synchronized (this) {
+                    m = model;
+
+                    if (m == null) {
+                        try {
+                            m = load(source);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+
+                        model = m;
+                        version++;
+                    }
+                }
+            }
+
+            return m;
+        }
+
+        /**
+         * Loads a new version of model and replaces the actual one. Predictions
+         * already running finish with the old model.
+         * @param newFilename   path to new model
+         * @throws IOException  if new model can not be loaded, the old one stays in use
+         */
+        public void swap(String newFilename) throws IOException {
+            SvmPredictor m = load(newFilename);
+
+            synchronized (this) {
+                source = newFilename;
+                model = m;
+                version++;
+            }
+        }
+
+        /**
+         * Checks whether model is loaded.
+         * @return  true if model is loaded
+         */
+        public boolean isLoaded() {
+            return model != null;
+        }
+
+        /**
+         * Number of loaded versions, 0 before the first prediction.
+         * @return  version
+         */
+        public int version() {
+            return version;
+        }
+
+        /**
+         * Key of handle in registry.
+         * @return  canonical path of model
+         */
+        public String filename() {
+            return filename;
+        }
+
+        /**
+         * Path of the file loaded now.
+         * @return  path of model
+         */
+        public String source() {
+            return source;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.ml.CvSVM;
+import org.opencv.ml.CvSVMParams;
+
+
+/**
+ * Selects parameters of SVM by k-fold cross-validation over a grid.
+ * 
+ * Every pair of configuration and fold is trained on its own thread. All
+ * folds share one feature matrix, training rows are selected by sample
+ * indices, so features are neither recomputed nor copied. Folds are
+ * stratified by class and do not depend on number of workers.
+ */
+public class ModelSelection {
+
+    /**
+     * Parameters of SVM.
+     */
+    public static class Params {
+        public final int kernel;
+        public final double c;
+        public final double gamma;
+        public final double degree;
+        public final double coef0;
+
+        public Params(int kernel, double c, double gamma, double degree, double coef0) {
+            this.kernel = kernel;
+            this.c = c;
+            this.gamma = gamma;
+            this.degree = degree;
+            this.coef0 = coef0;
+        }
+
+        /**
+         * Parameters of OpenCV for classification.
+         * @return  parameters
+         */
+        public CvSVMParams toCvParams() {
+            CvSVMParams p = new CvSVMParams();
+            p.set_svm_type(CvSVM.C_SVC);
+            p.set_kernel_type(kernel);
+            p.set_C(c);
+            p.set_gamma(gamma);
+            p.set_degree(degree);
+            p.set_coef0(coef0);
+            return p;
+        }
+
+        @Override
+        public String toString() {
+            switch (kernel) {
+                case CvSVM.LINEAR:
+                    return String.format("LINEAR C=%g", c);
+                case CvSVM.RBF:
+                    return String.format("RBF C=%g gamma=%g", c, gamma);
+                case CvSVM.POLY:
+                    return String.format("POLY C=%g gamma=%g degree=%g coef0=%g", c, gamma, degree, coef0);
+                default:
+                    return String.format("SIGMOID C=%g gamma=%g coef0=%g", c, gamma, coef0);
+            }
+        }
+    }
+
+    /**
+     * Result of cross-validation of one configuration.
+     */
+    public static class Score {
+        public final Params params;
+        public final double accuracy; // ratio of correctly predicted samples of all folds
+        public final double trainMillis; // mean training time of one fold
+        public final double predictMillis; // mean prediction time of one fold
+
+        Score(Params params, double accuracy, double trainMillis, double predictMillis) {
+            this.params = params;
+            this.accuracy = accuracy;
+            this.trainMillis = trainMillis;
+            this.predictMillis = predictMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-50s accuracy %6.2f %%, train %8.1f ms, predict %8.1f ms",
+                    params, accuracy * 100, trainMillis, predictMillis);
+        }
+    }
+
+    private int folds = 5;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private long seed = 1;
+
+    /**
+     * Sets number of folds.
+     * @param folds     number of folds, at least 2
+     * @return          this selection
+     */
+    public ModelSelection folds(int folds) {
+        if (folds < 2) {
+            throw new IllegalArgumentException("at least 2 folds are needed");
+        }
+
+        this.folds = folds;
+        return this;
+    }
+
+    /**
+     * Sets number of worker threads.
+     * @param workers   number of threads
+     * @return          this selection
+     */
+    public ModelSelection workers(int workers) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("workers must be positive");
+        }
+
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * Sets seed of random assignment of samples to folds.
+     * @param seed  seed
+     * @return      this selection
+     */
+    public ModelSelection seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Creates grid of all combinations of given values.
+     * @param kernels   kernel types of CvSVM
+     * @param cs        values of C
+     * @param gammas    values of gamma, not used by linear kernel
+     * @return          configurations
+     */
+    public static List<Params> grid(int[] kernels, double[] cs, double[] gammas) {
+        List<Params> grid = new ArrayList<>();
+
+        for (int kernel : kernels) {
+            for (double c : cs) {
+                if (kernel == CvSVM.LINEAR) {
+                    grid.add(new Params(kernel, c, 1, 0, 0));
+                    continue;
+                }
+
+                for (double gamma : gammas) {
+                    grid.add(new Params(kernel, c, gamma, 3, 0));
+                }
+            }
+        }
+
+        return grid;
+    }
+
+    /**
+     * Cross-validates all configurations.
+     * @param data      matrix of size N x D, one sample per row
+     * @param labels    classes of size N x 1
+     * @param grid      configurations
+     * @return          scores sorted from the best one
+     */
+    public List<Score> search(Mat data, Mat labels, List<Params> grid) {
+        if (grid.isEmpty()) {
+            throw new IllegalArgumentException("grid of parameters is empty");
+        }
+
+        int n = data.rows();
+        float[] classes = new float[n];
+        labels.get(0, 0, classes);
+
+        int[] fold = assignFolds(classes);
+        Mat[] trainIdx = new Mat[folds];
+        int[][] testIdx = new int[folds][];
+
+        for (int f = 0; f < folds; f++) {
+            int[] idx = indices(fold, f, false);
+            trainIdx[f] = new Mat(1, idx.length, CvType.CV_32SC1);
+            trainIdx[f].put(0, 0, idx);
+            testIdx[f] = indices(fold, f, true);
+        }
+
+        int[][] correct = new int[grid.size()][folds];
+        long[][] trainNanos = new long[grid.size()][folds];
+        long[][] predictNanos = new long[grid.size()][folds];
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            for (int g = 0; g < grid.size(); g++) {
+                for (int f = 0; f < folds; f++) {
+                    int gi = g;
+                    int fi = f;
+
+                    futures.add(pool.submit(() -> {
+                        CvSVM svm = new CvSVM();
+
+                        long start = System.nanoTime();
+                        svm.train(data, labels, new Mat(), trainIdx[fi], grid.get(gi).toCvParams());
+                        trainNanos[gi][fi] = System.nanoTime() - start;
+
+                        start = System.nanoTime();
+                        int ok = 0;
+
+                        for (int i : testIdx[fi]) {
+                            if (svm.predict(data.row(i)) == classes[i]) {
+                                ok++;
+                            }
+                        }
+
+                        predictNanos[gi][fi] = System.nanoTime() - start;
+                        correct[gi][fi] = ok;
+                        svm.clear();
+                    }));
+                }
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("model selection interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("model selection failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+
+            for (Mat m : trainIdx) {
+                m.release();
+            }
+        }
+
+        List<Score> scores = new ArrayList<>();
+
+        for (int g = 0; g < grid.size(); g++) {
+            int ok = 0;
+            long train = 0;
+            long predict = 0;
+
+            for (int f = 0; f < folds; f++) {
+                ok += correct[g][f];
+                train += trainNanos[g][f];
+                predict += predictNanos[g][f];
+            }
+
+            scores.add(new Score(grid.get(g), (double) ok / n, train / 1e6 / folds, predict / 1e6 / folds));
+        }
+
+        // stable sort keeps order of grid for equal accuracy
+        Collections.sort(scores, Comparator.comparingDouble((Score s) -> -s.accuracy));
+
+        return scores;
+    }
+
+    /**
+     * Assigns samples of every class to folds in turn after shuffling.
+     */
+    private int[] assignFolds(float[] classes) {
+        int n = classes.length;
+        List<Integer> order = new ArrayList<>();
+
+        for (int i = 0; i < n; i++) {
+            order.add(i);
+        }
+
+        Collections.shuffle(order, new Random(seed));
+        // stable sort groups classes and keeps shuffled order inside them
+        order.sort(Comparator.comparingDouble(i -> classes[i]));
+
+        int[] fold = new int[n];
+
+        for (int i = 0; i < n; i++) {
+            fold[order.get(i)] = i % folds;
+        }
+
+        return fold;
+    }
+
+    /**
+     * Indices of samples inside or outside of fold.
+     */
+    private static int[] indices(int[] fold, int f, boolean inside) {
+        int count = 0;
+
+        for (int x : fold) {
+            if ((x == f) == inside) {
+                count++;
+            }
+        }
+
+        int[] idx = new int[count];
+        int k = 0;
+
+        for (int i = 0; i < fold.length; i++) {
+            if ((fold[i] == f) == inside) {
+                idx[k++] = i;
+            }
+        }
+
+        return idx;
+    }
+
+    /**
+     * Formats scores as table.
+     * @param scores    scores of configurations
+     * @return          one line per configuration
+     */
+    public static String report(List<Score> scores) {
+        StringBuilder sb = new StringBuilder();
+
+        for (Score s : scores) {
+            sb.append(s).append(System.lineSeparator());
+        }
+
+        return sb.toString();
+    }
+}
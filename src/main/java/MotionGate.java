@@ -0,0 +1,391 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+
+/**
+ * Processes only parts of frame which changed since previous frames.
+ * 
+ * Frame is divided into tiles. A tile is dirty when some pixel differs from
+ * the last processed frame by more than motion threshold. Histogram of scene
+ * is updated only in dirty tiles and only dirty tiles are filtered again,
+ * unless the threshold of background changes. Contours are searched only
+ * around dirty tiles, people in untouched parts of frame keep their cached
+ * features and predictions.
+ * 
+ * Frames and mask have to be grayscale images of the same size. Gate keeps
+ * state between frames, it must be used only by one thread.
+ */
+public class MotionGate {
+
+    /**
+     * Detections of one frame.
+     */
+    public static class Result {
+        public final List<Detection> detections; // owned by gate, valid until they are replaced
+        public final float[] labels; // predicted class of every detection
+        public final int dirtyTiles;
+        public final int reused; // detections taken from previous frame
+
+        Result(List<Detection> detections, float[] labels, int dirtyTiles, int reused) {
+            this.detections = detections;
+            this.labels = labels;
+            this.dirtyTiles = dirtyTiles;
+            this.reused = reused;
+        }
+    }
+
+    private final Recognizer recognizer;
+    private final int nbins;
+    private final int maxValue;
+    private final int tileSize;
+    private final int motionThreshold;
+
+    private final int rows;
+    private final int cols;
+    private final int tilesX;
+    private final int tilesY;
+
+    private final byte[] mask;
+    private final byte[] frame; // actual frame
+    private final byte[] reference; // last processed content of every tile
+    private final byte[] filtered;
+    private final Mat filteredMat;
+
+    // histogram of every tile and of whole reference frame
+    private final int[][] tileHist;
+    private final float[] hist;
+    private int threshold = -1;
+
+    private final boolean[] dirty;
+    private boolean first = true;
+
+    // detections of previous frame
+    private List<Detection> cached = new ArrayList<>();
+    private float[] cachedLabels = new float[0];
+
+    /**
+     * Creates gate for frames of the same size as mask.
+     * @param recognizer        recognizer used for detection and prediction
+     * @param mask              mask of scene
+     * @param nbins             number of bins used for histogram computation
+     * @param maxValue          maximum intensity value which will be examined
+     * @param tileSize          size of square tile in pixels
+     * @param motionThreshold   pixels differing by more than this are changed
+     */
+    public MotionGate(Recognizer recognizer, Mat mask, int nbins, int maxValue, int tileSize, int motionThreshold) {
+        if (mask.type() != CvType.CV_8UC1) {
+            throw new IllegalArgumentException("mask has to be grayscale image");
+        }
+
+        this.recognizer = recognizer;
+        this.nbins = nbins;
+        this.maxValue = maxValue;
+        this.tileSize = tileSize;
+        this.motionThreshold = motionThreshold;
+
+        rows = mask.rows();
+        cols = mask.cols();
+        tilesX = (cols + tileSize - 1) / tileSize;
+        tilesY = (rows + tileSize - 1) / tileSize;
+
+        this.mask = new byte[rows * cols];
+        mask.get(0, 0, this.mask);
+        frame = new byte[rows * cols];
+        reference = new byte[rows * cols];
+        filtered = new byte[rows * cols];
+        filteredMat = new Mat(rows, cols, CvType.CV_8UC1);
+
+        tileHist = new int[tilesX * tilesY][nbins];
+        hist = new float[nbins];
+        dirty = new boolean[tilesX * tilesY];
+    }
+
+    /**
+     * Detects people in frame and predicts their classes, results of untouched
+     * people are taken from previous frames.
+     * @param img   grayscale frame
+     * @return      detections of frame
+     */
+    public Result process(Mat img) {
+        if (img.type() != CvType.CV_8UC1 || img.rows() != rows || img.cols() != cols) {
+            throw new IllegalArgumentException("frame has to be grayscale image of size " + cols + "x" + rows);
+        }
+
+        img.get(0, 0, frame);
+        int dirtyTiles = markDirty();
+
+        if (dirtyTiles == 0) {
+            return new Result(cached, cachedLabels, 0, cached.size());
+        }
+
+        // update histogram and reference frame of dirty tiles
+        for (int t = 0; t < dirty.length; t++) {
+            if (dirty[t]) {
+                updateTile(t);
+            }
+        }
+
+        // changed threshold needs filtering of whole frame
+        int t = Recognizer.maskThreshold(hist, nbins, maxValue);
+        boolean all = t != threshold;
+        threshold = t;
+
+        if (all) {
+            Arrays.fill(dirty, true);
+            dirtyTiles = dirty.length;
+        }
+
+        for (int i = 0; i < dirty.length; i++) {
+            if (dirty[i]) {
+                filterTile(i);
+            }
+        }
+
+        filteredMat.put(0, 0, filtered);
+
+        return detect(dirtyTiles);
+    }
+
+    /**
+     * Filtered image of the last frame.
+     * @return  image owned by gate
+     */
+    public Mat filtered() {
+        return filteredMat;
+    }
+
+    /**
+     * Marks tiles changed since their last processing.
+     */
+    private int markDirty() {
+        if (first) {
+            first = false;
+            Arrays.fill(dirty, true);
+            return dirty.length;
+        }
+
+        Arrays.fill(dirty, false);
+        int count = 0;
+
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                if (changed(tx, ty)) {
+                    dirty[ty * tilesX + tx] = true;
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    private boolean changed(int tx, int ty) {
+        int x1 = Math.min(cols, (tx + 1) * tileSize);
+        int y1 = Math.min(rows, (ty + 1) * tileSize);
+
+        for (int y = ty * tileSize; y < y1; y++) {
+            for (int i = y * cols + tx * tileSize, end = y * cols + x1; i < end; i++) {
+                if (Math.abs((frame[i] & 0xff) - (reference[i] & 0xff)) > motionThreshold) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Replaces histogram of tile by histogram of actual frame, bins are the same as calcHist.
+     */
+    private void updateTile(int t) {
+        int[] h = tileHist[t];
+
+        for (int b = 0; b < nbins; b++) {
+            hist[b] -= h[b];
+            h[b] = 0;
+        }
+
+        double scale = (double) nbins / maxValue;
+        int tx = t % tilesX;
+        int ty = t / tilesX;
+        int x1 = Math.min(cols, (tx + 1) * tileSize);
+        int y1 = Math.min(rows, (ty + 1) * tileSize);
+
+        for (int y = ty * tileSize; y < y1; y++) {
+            for (int i = y * cols + tx * tileSize, end = y * cols + x1; i < end; i++) {
+                int v = frame[i] & 0xff;
+                reference[i] = frame[i];
+
+                if (v < maxValue) {
+                    h[(int) (v * scale)]++;
+                }
+            }
+        }
+
+        for (int b = 0; b < nbins; b++) {
+            hist[b] += h[b];
+        }
+    }
+
+    /**
+     * Filters tile of reference frame, same as maskFilter.
+     */
+    private void filterTile(int t) {
+        int tx = t % tilesX;
+        int ty = t / tilesX;
+        int x1 = Math.min(cols, (tx + 1) * tileSize);
+        int y1 = Math.min(rows, (ty + 1) * tileSize);
+
+        for (int y = ty * tileSize; y < y1; y++) {
+            for (int i = y * cols + tx * tileSize, end = y * cols + x1; i < end; i++) {
+                int v = reference[i] & 0xff;
+                filtered[i] = v - (mask[i] & 0xff) > threshold ? reference[i] : 0;
+            }
+        }
+    }
+
+    /**
+     * Finds bodies around dirty tiles, cached results are reused for the others.
+     */
+    private Result detect(int dirtyTiles) {
+        int margin = recognizer.config().medianSize;
+        List<Rect> rois = new ArrayList<>();
+
+        // consecutive dirty tiles of every row form one region
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                if (!dirty[ty * tilesX + tx]) {
+                    continue;
+                }
+
+                int start = tx;
+                while (tx + 1 < tilesX && dirty[ty * tilesX + tx + 1]) {
+                    tx++;
+                }
+
+                rois.add(PyramidDetector.clip(new Rect(start * tileSize - margin, ty * tileSize - margin,
+                        (tx - start + 1) * tileSize + 2 * margin, tileSize + 2 * margin), filteredMat));
+            }
+        }
+
+        // regions have to contain whole people they touch
+        boolean[] absorbed = new boolean[cached.size()];
+        boolean grown = true;
+
+        while (grown) {
+            rois = PyramidDetector.merge(rois);
+            grown = false;
+
+            for (int i = 0; i < absorbed.length; i++) {
+                if (!absorbed[i] && touches(cached.get(i).rect, rois)) {
+                    Rect r = cached.get(i).rect;
+                    rois.add(PyramidDetector.clip(new Rect(r.x - margin, r.y - margin, r.width + 2 * margin, r.height + 2 * margin), filteredMat));
+                    absorbed[i] = true;
+                    grown = true;
+                }
+            }
+        }
+
+        List<Detection> detections = new ArrayList<>();
+        List<Float> labels = new ArrayList<>();
+        boolean[] reusedCached = new boolean[cached.size()];
+
+        // people outside of regions did not change
+        for (int i = 0; i < absorbed.length; i++) {
+            if (!absorbed[i]) {
+                detections.add(cached.get(i));
+                labels.add(cachedLabels[i]);
+                reusedCached[i] = true;
+            }
+        }
+
+        // people inside of regions are reused if their shape stayed in clean tiles
+        List<Detection> bodies = new ArrayList<>();
+
+        for (Rect roi : rois) {
+            for (Detection body : recognizer.findBodies(filteredMat, roi, recognizer.config().minShapeSize)) {
+                int same = !touchesDirty(body.rect) ? find(body.rect, absorbed, reusedCached) : -1;
+
+                if (same >= 0) {
+                    detections.add(cached.get(same));
+                    labels.add(cachedLabels[same]);
+                    reusedCached[same] = true;
+                } else {
+                    bodies.add(body);
+                }
+            }
+        }
+
+        int reused = detections.size();
+
+        // new features and predictions
+        List<Detection> described = recognizer.describeAll(filteredMat, bodies);
+        List<Mat> features = new ArrayList<>(described.size());
+
+        for (Detection d : described) {
+            features.add(d.features);
+        }
+
+        float[] predicted = recognizer.predictBatch(features, null, false);
+
+        for (int i = 0; i < described.size(); i++) {
+            detections.add(described.get(i));
+            labels.add(predicted[i]);
+        }
+
+        // release results which are not used anymore
+        for (int i = 0; i < reusedCached.length; i++) {
+            if (!reusedCached[i]) {
+                cached.get(i).release();
+            }
+        }
+
+        cached = detections;
+        cachedLabels = new float[labels.size()];
+
+        for (int i = 0; i < cachedLabels.length; i++) {
+            cachedLabels[i] = labels.get(i);
+        }
+
+        return new Result(cached, cachedLabels, dirtyTiles, reused);
+    }
+
+    private int find(Rect rect, boolean[] absorbed, boolean[] reusedCached) {
+        for (int i = 0; i < absorbed.length; i++) {
+            if (absorbed[i] && !reusedCached[i] && cached.get(i).rect.equals(rect)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static boolean touches(Rect rect, List<Rect> rois) {
+        for (Rect roi : rois) {
+            if (PyramidDetector.intersection(rect, roi) > 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean touchesDirty(Rect rect) {
+        int tx1 = Math.min(tilesX - 1, (rect.x + rect.width - 1) / tileSize);
+        int ty1 = Math.min(tilesY - 1, (rect.y + rect.height - 1) / tileSize);
+
+        for (int ty = rect.y / tileSize; ty <= ty1; ty++) {
+            for (int tx = rect.x / tileSize; tx <= tx1; tx++) {
+                if (dirty[ty * tilesX + tx]) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,31 @@
+import org.opencv.core.Mat;
+import org.opencv.ml.CvSVM;
+
+
+/**
+ * SVM of OpenCV used for prediction.
+ */
+public class NativeSvm implements SvmPredictor {
+
+    private final CvSVM svm;
+
+    public NativeSvm(CvSVM svm) {
+        this.svm = svm;
+    }
+
+    /**
+     * Loads a model from XML file.
+     * @param filename  path to model
+     * @return          loaded model
+     */
+    public static NativeSvm load(String filename) {
+        CvSVM svm = new CvSVM();
+        svm.load(filename);
+        return new NativeSvm(svm);
+    }
+
+    @Override
+    public float predict(Mat sample, boolean returnDFVal) {
+        return svm.predict(sample, returnDFVal);
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+
+
+/**
+ * Projection of HOG features to principal components.
+ * 
+ * Projection is fitted on training features and stored next to the model,
+ * file model.xml has projection in model.pca. Loaded models are wrapped by
+ * apply, so samples given to predict keep their full length. Mean and basis
+ * are only read after fitting, projection can be shared between threads.
+ */
+public class PcaProjection {
+
+    private static final int MAGIC = 0x50434150; // "PCAP"
+    private static final int VERSION = 1;
+
+    private final Mat mean; // 1 x D
+    private final Mat basis; // K x D, one component per row
+
+    // projected sample of size 1 x K, one per thread
+    private final ThreadLocal<Mat> projected;
+
+    private PcaProjection(Mat mean, Mat basis) {
+        this.mean = mean;
+        this.basis = basis;
+        projected = ThreadLocal.withInitial(() -> new Mat(1, basis.rows(), CvType.CV_32FC1));
+    }
+
+    /**
+     * Fits projection to given number of components.
+     * @param data          matrix of size N x D, one sample per row
+     * @param components    number of components
+     * @return              projection
+     */
+    public static PcaProjection fit(Mat data, int components) {
+        Mat mean = new Mat();
+        Mat basis = new Mat();
+        Core.PCACompute(data, mean, basis, Math.min(components, Math.min(data.rows(), data.cols())));
+        return new PcaProjection(mean, basis);
+    }
+
+    /**
+     * Fits projection keeping given ratio of variance.
+     * @param data          matrix of size N x D, one sample per row
+     * @param variance      retained variance from 0 to 1
+     * @return              projection
+     */
+    public static PcaProjection fitVariance(Mat data, double variance) {
+        Mat mean = new Mat();
+        Mat basis = new Mat();
+        Core.PCACompute(data, mean, basis, variance);
+        return new PcaProjection(mean, basis);
+    }
+
+    /**
+     * Fits projection according to configuration.
+     * @param data      matrix of size N x D, one sample per row
+     * @param config    configuration with number of components or retained variance
+     * @return          projection or null if projection is disabled
+     */
+    public static PcaProjection fit(Mat data, RecognizerConfig config) {
+        if (config.pcaComponents > 0) {
+            return fit(data, config.pcaComponents);
+        }
+
+        if (config.pcaVariance > 0) {
+            return fitVariance(data, config.pcaVariance);
+        }
+
+        return null;
+    }
+
+    /**
+     * Length of input features.
+     * @return  number of features
+     */
+    public int inputLength() {
+        return basis.cols();
+    }
+
+    /**
+     * Length of projected features.
+     * @return  number of components
+     */
+    public int outputLength() {
+        return basis.rows();
+    }
+
+    /**
+     * Projects samples to principal components.
+     * @param data  matrix of size N x D
+     * @return      matrix of size N x K
+     */
+    public Mat project(Mat data) {
+        Mat result = new Mat();
+        Core.PCAProject(data, mean, basis, result);
+        return result;
+    }
+
+    /**
+     * Ratio of variance of given data kept by projection.
+     * @param data  matrix of size N x D
+     * @return      retained variance from 0 to 1
+     */
+    public double retainedVariance(Mat data) {
+        Mat p = project(data);
+        double kept = variance(p);
+        p.release();
+        return kept / variance(data);
+    }
+
+    /**
+     * Sum of variances of all columns.
+     */
+    private static double variance(Mat data) {
+        MatOfDouble m = new MatOfDouble();
+        MatOfDouble sd = new MatOfDouble();
+        double sum = 0;
+
+        for (int c = 0; c < data.cols(); c++) {
+            Mat col = data.col(c);
+            Core.meanStdDev(col, m, sd);
+            sum += sd.get(0, 0)[0] * sd.get(0, 0)[0];
+            col.release();
+        }
+
+        m.release();
+        sd.release();
+        return sum;
+    }
+
+    /**
+     * Wraps predictor of projected samples, so it accepts samples of full length.
+     * @param svm   predictor trained on projected features
+     * @return      predictor of full features
+     */
+    public SvmPredictor apply(SvmPredictor svm) {
+        return new SvmPredictor() {
+            @Override
+            public float predict(Mat sample, boolean returnDFVal) {
+                Mat p = projected.get();
+                Core.PCAProject(sample, mean, basis, p);
+                return svm.predict(p, returnDFVal);
+            }
+
+            @Override
+            public void predictBatch(Mat samples, float[] out, int offset, boolean returnDFVal) {
+                Mat p = project(samples);
+                svm.predictBatch(p, out, offset, returnDFVal);
+                p.release();
+            }
+        };
+    }
+
+    /**
+     * File with projection of model.
+     * @param modelFilename     path to model
+     * @return                  path to projection, model name with extension .pca
+     */
+    public static File fileOf(String modelFilename) {
+        int dot = modelFilename.lastIndexOf('.');
+        int sep = Math.max(modelFilename.lastIndexOf('/'), modelFilename.lastIndexOf(File.separatorChar));
+        String base = dot > sep ? modelFilename.substring(0, dot) : modelFilename;
+        return new File(base + ".pca");
+    }
+
+    /**
+     * Writes projection to file, file is replaced atomically.
+     * @param file  output file
+     * @throws IOException 
+     */
+    public void write(File file) throws IOException {
+        int k = basis.rows();
+        int d = basis.cols();
+        float[] m = new float[d];
+        float[] b = new float[k * d];
+        mean.get(0, 0, m);
+        basis.get(0, 0, b);
+
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(d);
+            out.writeInt(k);
+
+            for (float v : m) {
+                out.writeFloat(v);
+            }
+
+            for (float v : b) {
+                out.writeFloat(v);
+            }
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads projection from file.
+     * @param file  file written by write
+     * @return      projection
+     * @throws IOException if file is damaged
+     */
+    public static PcaProjection read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("file " + file + " is not PCA projection");
+            }
+
+            int d = in.readInt();
+            int k = in.readInt();
+            float[] m = new float[d];
+            float[] b = new float[k * d];
+
+            for (int i = 0; i < d; i++) {
+                m[i] = in.readFloat();
+            }
+
+            for (int i = 0; i < b.length; i++) {
+                b[i] = in.readFloat();
+            }
+
+            Mat mean = new Mat(1, d, CvType.CV_32FC1);
+            Mat basis = new Mat(k, d, CvType.CV_32FC1);
+            mean.put(0, 0, m);
+            basis.put(0, 0, b);
+            return new PcaProjection(mean, basis);
+        }
+    }
+
+    /**
+     * Cross-validates SVM on features projected to given numbers of components.
+     * @param data          matrix of size N x D, one sample per row
+     * @param labels        classes of size N x 1
+     * @param components    numbers of components, 0 means features without projection
+     * @param selection     cross-validation settings
+     * @param params        parameters of SVM
+     * @return              table with accuracy and times of every dimension
+     */
+    public static String report(Mat data, Mat labels, int[] components, ModelSelection selection, ModelSelection.Params params) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%10s %10s %10s %12s %12s %12s%n", "dimension", "variance", "accuracy", "fit ms", "train ms", "predict ms"));
+
+        for (int k : components) {
+            long start = System.nanoTime();
+            PcaProjection pca = k > 0 ? fit(data, k) : null;
+            Mat projected = pca != null ? pca.project(data) : data;
+            double fitMillis = (System.nanoTime() - start) / 1e6;
+
+            List<ModelSelection.Score> scores = selection.search(projected, labels, List.of(params));
+            ModelSelection.Score s = scores.get(0);
+
+            sb.append(String.format("%10d %9.2f%% %9.2f%% %12.1f %12.1f %12.1f%n",
+                    projected.cols(), pca != null ? pca.retainedVariance(data) * 100 : 100.0,
+                    s.accuracy * 100, fitMillis, s.trainMillis, s.predictMillis));
+
+            if (pca != null) {
+                projected.release();
+            }
+        }
+
+        return sb.toString();
+    }
+}
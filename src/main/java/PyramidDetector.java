@@ -0,0 +1,233 @@
+import java.util.ArrayList;
+import java.util.List;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+
+/**
+ * Coarse-to-fine detection of human bodies.
+ * 
+ * Candidate regions are found on the coarsest level of image pyramid and
+ * refined on every finer level only inside the upscaled regions of the
+ * coarser one. Contours, padding and HOG features are then computed at full
+ * resolution only inside the regions of level 1. Minimal area of shape can
+ * be set for every level, level 0 is the full resolution.
+ */
+public class PyramidDetector {
+
+    private final Recognizer recognizer;
+    private final int levels;
+    private final int[] minShapeSize;
+    private int margin;
+
+    // margin of regions upscaled to intermediate level, in pixels of that level
+    static final int levelMargin = 2;
+
+    /**
+     * Creates detector with default minimal areas of shapes, area at level l
+     * is half of minShapeSize of recognizer / 4^l to keep all candidates.
+     * @param recognizer    recognizer used for full resolution steps
+     * @param levels        number of pyrDown steps to the coarse level
+     */
+    public PyramidDetector(Recognizer recognizer, int levels) {
+        if (levels < 1) {
+            throw new IllegalArgumentException("at least one pyramid level is needed");
+        }
+
+        this.recognizer = recognizer;
+        this.levels = levels;
+        this.minShapeSize = new int[levels + 1];
+
+        RecognizerConfig config = recognizer.config();
+        minShapeSize[0] = config.minShapeSize;
+        for (int l = 1; l <= levels; l++) {
+            minShapeSize[l] = config.minShapeSize / (1 << (2 * l)) / 2;
+        }
+
+        // blur of pyramid and median filter may move the border of shape
+        margin = 2 * levelMargin + config.medianSize;
+    }
+
+    /**
+     * Sets minimal area of shape at given level.
+     * @param level     level of pyramid, 0 is the full resolution
+     * @param size      minimal area in pixels of that level
+     * @return          this detector
+     */
+    public PyramidDetector minShapeSize(int level, int size) {
+        if (level < 0 || level > levels) {
+            throw new IllegalArgumentException("level must be between 0 and " + levels + ": " + level);
+        }
+
+        minShapeSize[level] = size;
+        return this;
+    }
+
+    /**
+     * Sets number of pixels added around every candidate region at full resolution.
+     * @param margin    margin in pixels
+     * @return          this detector
+     */
+    public PyramidDetector margin(int margin) {
+        this.margin = margin;
+        return this;
+    }
+
+    /**
+     * Detects human bodies in image and computes features from them.
+     * @param img       image
+     * @return          all detected bodies
+     */
+    public List<Detection> detect(Mat img) {
+        return recognizer.describeAll(img, findBodies(img));
+    }
+
+    /**
+     * Finds shapes of human bodies in candidate regions of image.
+     * @param img       image
+     * @return          bodies without padded image and features
+     */
+    public List<Detection> findBodies(Mat img) {
+        List<Detection> bodies = new ArrayList<>();
+
+        for (Rect roi : candidates(img)) {
+            bodies.addAll(recognizer.findBodies(img, roi, minShapeSize[0]));
+        }
+
+        return bodies;
+    }
+
+    /**
+     * Finds regions of full resolution image which may contain bodies.
+     * @param img       image
+     * @return          disjoint regions
+     */
+    public List<Rect> candidates(Mat img) {
+        List<Rect> rois = new ArrayList<>();
+
+        try (MatArena.Scope scope = recognizer.arena().open()) {
+            // downscale, pyramid[l] is level l
+            Mat[] pyramid = new Mat[levels + 1];
+            pyramid[0] = img;
+
+            for (int l = 1; l <= levels; l++) {
+                Mat up = pyramid[l - 1];
+                pyramid[l] = scope.mat((up.rows() + 1) / 2, (up.cols() + 1) / 2, up.type());
+                Imgproc.pyrDown(up, pyramid[l]);
+            }
+
+            // coarse level, the whole image
+            Mat coarse = pyramid[levels];
+            List<Rect> regions = shapes(coarse, new Rect(0, 0, coarse.cols(), coarse.rows()), minShapeSize[levels], scope);
+
+            // refine on intermediate levels inside upscaled regions
+            for (int l = levels - 1; l >= 1; l--) {
+                List<Rect> refined = new ArrayList<>();
+
+                for (Rect r : regions) {
+                    refined.addAll(shapes(pyramid[l], upscale(r, 2, levelMargin, pyramid[l]), minShapeSize[l], scope));
+                }
+
+                regions = merge(refined);
+            }
+
+            // regions of full resolution
+            for (Rect r : regions) {
+                rois.add(upscale(r, 2, margin, img));
+            }
+        }
+
+        return merge(rois);
+    }
+
+    /**
+     * Finds bounding rectangles of shapes in region of pyramid level.
+     * @param level     image of pyramid level
+     * @param roi       examined region
+     * @param minSize   minimal area of shape at this level
+     * @param scope     scope of temporary matrices
+     * @return          rectangles in coordinates of level
+     */
+    private List<Rect> shapes(Mat level, Rect roi, int minSize, MatArena.Scope scope) {
+        List<Rect> rects = new ArrayList<>();
+
+        if (roi.width <= 0 || roi.height <= 0) {
+            return rects;
+        }
+
+        // regions change size with every call and are not pooled
+        Mat part = scope.track(level.submat(roi));
+        Mat binMask = scope.temp(roi.height, roi.width, level.type());
+        Imgproc.threshold(part, binMask, 0, 1, Imgproc.THRESH_BINARY);
+
+        List<MatOfPoint> contours = new ArrayList<>();
+        Imgproc.findContours(binMask, contours, scope.mat(), Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE, roi.tl());
+
+        for (MatOfPoint c : contours) {
+            scope.track(c);
+
+            if (Imgproc.contourArea(c) > minSize) {
+                rects.add(Imgproc.boundingRect(c));
+            }
+        }
+
+        return rects;
+    }
+
+    /**
+     * Scales region to finer level and adds margin.
+     * @param r         region
+     * @param scale     scale of finer level
+     * @param margin    margin in pixels of finer level
+     * @param img       image of finer level
+     * @return          region clipped to image
+     */
+    private static Rect upscale(Rect r, int scale, int margin, Mat img) {
+        return clip(new Rect(r.x * scale - margin, r.y * scale - margin, r.width * scale + 2 * margin, r.height * scale + 2 * margin), img);
+    }
+
+    /**
+     * Joins overlapping regions, so every shape is found only once.
+     */
+    static List<Rect> merge(List<Rect> rois) {
+        List<Rect> result = new ArrayList<>(rois);
+        boolean merged = true;
+
+        while (merged) {
+            merged = false;
+
+            for (int i = 0; i < result.size() && !merged; i++) {
+                for (int j = i + 1; j < result.size(); j++) {
+                    Rect a = result.get(i);
+                    Rect b = result.get(j);
+
+                    if (intersection(a, b) > 0) {
+                        int x = Math.min(a.x, b.x);
+                        int y = Math.min(a.y, b.y);
+                        result.set(i, new Rect(x, y, Math.max(a.x + a.width, b.x + b.width) - x,
+                                Math.max(a.y + a.height, b.y + b.height) - y));
+                        result.remove(j);
+                        merged = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    static Rect clip(Rect r, Mat img) {
+        int x = Math.max(0, r.x);
+        int y = Math.max(0, r.y);
+        return new Rect(x, y, Math.min(img.cols(), r.x + r.width) - x, Math.min(img.rows(), r.y + r.height) - y);
+    }
+
+    static double intersection(Rect a, Rect b) {
+        int w = Math.min(a.x + a.width, b.x + b.width) - Math.max(a.x, b.x);
+        int h = Math.min(a.y + a.height, b.y + b.height) - Math.max(a.y, b.y);
+        return w > 0 && h > 0 ? (double) w * h : 0;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,526 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.ml.CvSVM;
+
+
+/**
+ * Matrix of features stored with reduced precision.
+ * 
+ * INT8 stores every value in one byte with per-column offset and scale,
+ * FLOAT16 stores every value as half precision float. Rows are decoded to
+ * floats on the fly, in blocks, for scoring. CvSVM trains only on a float
+ * matrix, so toMat decodes the whole matrix for training. The same encoding
+ * is used on disk, by files of this class and by FeatureStore. Loss of
+ * accuracy is checked by main.
+ */
+public class QuantizedMatrix {
+
+    /**
+     * Encoding of values.
+     */
+    public enum Encoding {
+        INT8(1), // 4x smaller, error up to (max - min) / 510 of column
+        FLOAT16(2); // 2x smaller, relative error up to 2^-11
+
+        public final int bytes;
+
+        Encoding(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private static final int MAGIC = 0x51464541; // "QFEA"
+    private static final int VERSION = 1;
+
+    // rows decoded at once
+    static final int blockRows = 256;
+
+    public final int rows;
+    public final int cols;
+    public final Encoding encoding;
+
+    private final byte[] bytes; // INT8
+    private final short[] halfs; // FLOAT16
+    private final float[] min; // INT8, per column
+    private final float[] scale; // INT8, per column
+
+    private QuantizedMatrix(int rows, int cols, Encoding encoding, byte[] bytes, short[] halfs, float[] min, float[] scale) {
+        this.rows = rows;
+        this.cols = cols;
+        this.encoding = encoding;
+        this.bytes = bytes;
+        this.halfs = halfs;
+        this.min = min;
+        this.scale = scale;
+    }
+
+    /**
+     * Creates empty INT8 matrix for values of given ranges of columns.
+     * @param rows  number of rows
+     * @param min   minimum of every column
+     * @param max   maximum of every column
+     * @return      matrix filled by setRow
+     */
+    public static QuantizedMatrix int8(int rows, float[] min, float[] max) {
+        int cols = min.length;
+        float[] scale = new float[cols];
+
+        for (int c = 0; c < cols; c++) {
+            scale[c] = (max[c] - min[c]) / 255;
+        }
+
+        return new QuantizedMatrix(rows, cols, Encoding.INT8, new byte[Math.multiplyExact(rows, cols)], null, min.clone(), scale);
+    }
+
+    /**
+     * Creates empty FLOAT16 matrix.
+     * @param rows  number of rows
+     * @param cols  number of columns
+     * @return      matrix filled by setRow
+     */
+    public static QuantizedMatrix float16(int rows, int cols) {
+        return new QuantizedMatrix(rows, cols, Encoding.FLOAT16, null, new short[Math.multiplyExact(rows, cols)], null, null);
+    }
+
+    /**
+     * Encodes matrix of features.
+     * @param data      matrix of type CV_32FC1
+     * @param encoding  encoding
+     * @return          encoded matrix
+     */
+    public static QuantizedMatrix quantize(Mat data, Encoding encoding) {
+        int rows = data.rows();
+        int cols = data.cols();
+        float[] row = new float[cols];
+        QuantizedMatrix q;
+
+        if (encoding == Encoding.INT8) {
+            float[] min = new float[cols];
+            float[] max = new float[cols];
+            Arrays.fill(min, Float.POSITIVE_INFINITY);
+            Arrays.fill(max, Float.NEGATIVE_INFINITY);
+
+            for (int r = 0; r < rows; r++) {
+                data.get(r, 0, row);
+                range(row, 0, min, max);
+            }
+
+            q = int8(rows, min, max);
+        } else {
+            q = float16(rows, cols);
+        }
+
+        for (int r = 0; r < rows; r++) {
+            data.get(r, 0, row);
+            q.setRow(r, row, 0);
+        }
+
+        return q;
+    }
+
+    /**
+     * Updates ranges of columns by one row.
+     * @param row       values
+     * @param offset    position of row in array
+     * @param min       minimum of every column
+     * @param max       maximum of every column
+     */
+    static void range(float[] row, int offset, float[] min, float[] max) {
+        for (int c = 0; c < min.length; c++) {
+            float v = row[offset + c];
+            min[c] = Math.min(min[c], v);
+            max[c] = Math.max(max[c], v);
+        }
+    }
+
+    /**
+     * Encodes one row.
+     * @param r         index of row
+     * @param src       values
+     * @param offset    position of row in array
+     */
+    public void setRow(int r, float[] src, int offset) {
+        int base = r * cols;
+
+        if (encoding == Encoding.INT8) {
+            for (int c = 0; c < cols; c++) {
+                int v = scale[c] > 0 ? Math.round((src[offset + c] - min[c]) / scale[c]) : 0;
+                bytes[base + c] = (byte) Math.max(0, Math.min(255, v));
+            }
+        } else {
+            for (int c = 0; c < cols; c++) {
+                halfs[base + c] = toHalf(src[offset + c]);
+            }
+        }
+    }
+
+    /**
+     * Decodes one row.
+     * @param r         index of row
+     * @param dst       buffer for values
+     * @param offset    position of row in buffer
+     */
+    public void row(int r, float[] dst, int offset) {
+        int base = r * cols;
+
+        if (encoding == Encoding.INT8) {
+            for (int c = 0; c < cols; c++) {
+                dst[offset + c] = min[c] + (bytes[base + c] & 0xff) * scale[c];
+            }
+        } else {
+            for (int c = 0; c < cols; c++) {
+                dst[offset + c] = toFloat(halfs[base + c]);
+            }
+        }
+    }
+
+    /**
+     * Decodes block of rows.
+     * @param from  first row (inclusive)
+     * @param to    last row (exclusive)
+     * @return      matrix of type CV_32FC1
+     */
+    public Mat rows(int from, int to) {
+        int n = to - from;
+        float[] values = new float[n * cols];
+
+        for (int r = 0; r < n; r++) {
+            row(from + r, values, r * cols);
+        }
+
+        Mat m = new Mat(n, cols, CvType.CV_32FC1);
+        m.put(0, 0, values);
+        return m;
+    }
+
+    /**
+     * Decodes whole matrix, for example for training. The result is written
+     * block by block, the decoded copy is never held twice.
+     * @return  matrix of type CV_32FC1
+     */
+    public Mat toMat() {
+        Mat m = new Mat(rows, cols, CvType.CV_32FC1);
+        float[] values = new float[Math.min(rows, blockRows) * cols];
+
+        for (int from = 0; from < rows; from += blockRows) {
+            int n = Math.min(blockRows, rows - from);
+
+            for (int r = 0; r < n; r++) {
+                row(from + r, values, r * cols);
+            }
+
+            m.put(from, 0, n * cols == values.length ? values : Arrays.copyOf(values, n * cols));
+        }
+
+        return m;
+    }
+
+    /**
+     * Predicts classes of all rows, rows are decoded block by block.
+     * @param svm           predictor
+     * @param out           buffer for results, new one is created if it is null or too small
+     * @param returnDFVal   return value of decision function instead of class (only for 2 classes)
+     * @return              predicted classes or decision values, first rows items of buffer
+     */
+    public float[] predict(SvmPredictor svm, float[] out, boolean returnDFVal) {
+        float[] results = out != null && out.length >= rows ? out : new float[rows];
+
+        for (int from = 0; from < rows; from += blockRows) {
+            Mat block = rows(from, Math.min(rows, from + blockRows));
+            svm.predictBatch(block, results, from, returnDFVal);
+            block.release();
+        }
+
+        return results;
+    }
+
+    /**
+     * Size of encoded values.
+     * @return  size in bytes
+     */
+    public long bytes() {
+        return (long) rows * cols * encoding.bytes + (min != null ? 8L * cols : 0);
+    }
+
+    /**
+     * Converts float to half precision, rounds to nearest even.
+     * @param f     value
+     * @return      bits of half precision float
+     */
+    static short toHalf(float f) {
+        int x = Float.floatToRawIntBits(f);
+        int sign = (x >>> 16) & 0x8000;
+        int abs = x & 0x7fffffff;
+
+        // infinity and NaN
+        if (abs >= 0x7f800000) {
+            return (short) (sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));
+        }
+
+        // rounds to infinity
+        if (abs >= 0x477ff000) {
+            return (short) (sign | 0x7c00);
+        }
+
+        // subnormal, unit is 2^-24
+        if (abs < 0x38800000) {
+            return (short) (sign | (int) Math.rint(Float.intBitsToFloat(abs) * 0x1p24f));
+        }
+
+        // normal, change bias of exponent and round mantissa
+        int r = abs - 0x38000000;
+        r += 0xfff + ((r >>> 13) & 1);
+        return (short) (sign | (r >>> 13));
+    }
+
+    /**
+     * Converts half precision float to float.
+     * @param h     bits of half precision float
+     * @return      value
+     */
+    static float toFloat(short h) {
+        int bits = h & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exp = (bits >>> 10) & 0x1f;
+        int mant = bits & 0x3ff;
+
+        if (exp == 0) {
+            float v = mant * 0x1p-24f;
+            return sign != 0 ? -v : v;
+        }
+
+        if (exp == 31) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+        }
+
+        return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mant << 13));
+    }
+
+    /**
+     * Writes matrix to file, file is replaced atomically.
+     * @param file  output file
+     * @throws IOException 
+     */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(encoding.ordinal());
+            out.writeInt(rows);
+            out.writeInt(cols);
+            writeScales(out);
+            writeValues(out);
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes offset and scale of every column, only INT8 has them.
+     * @param out   output
+     * @throws IOException 
+     */
+    void writeScales(DataOutput out) throws IOException {
+        if (encoding == Encoding.INT8) {
+            for (int c = 0; c < cols; c++) {
+                out.writeFloat(min[c]);
+                out.writeFloat(scale[c]);
+            }
+        }
+    }
+
+    /**
+     * Writes encoded values row by row, in big-endian order.
+     * @param out   output
+     * @throws IOException 
+     */
+    void writeValues(DataOutput out) throws IOException {
+        if (encoding == Encoding.INT8) {
+            out.write(bytes);
+        } else {
+            for (short h : halfs) {
+                out.writeShort(h);
+            }
+        }
+    }
+
+    /**
+     * Decodes one row written by writeValues.
+     * @param buf       buffer with encoded values
+     * @param position  position of row in buffer
+     * @param encoding  encoding of values
+     * @param min       offsets of columns written by writeScales, only for INT8
+     * @param scale     scales of columns written by writeScales, only for INT8
+     * @param dst       buffer for values
+     * @param cols      number of columns
+     */
+    static void decodeRow(ByteBuffer buf, int position, Encoding encoding, float[] min, float[] scale, float[] dst, int cols) {
+        if (encoding == Encoding.INT8) {
+            for (int c = 0; c < cols; c++) {
+                dst[c] = min[c] + (buf.get(position + c) & 0xff) * scale[c];
+            }
+        } else {
+            for (int c = 0; c < cols; c++) {
+                dst[c] = toFloat(buf.getShort(position + 2 * c));
+            }
+        }
+    }
+
+    /**
+     * Reads matrix from file, file is memory-mapped while it is read.
+     * @param file  file written by write
+     * @return      matrix
+     * @throws IOException if file is damaged
+     */
+    public static QuantizedMatrix read(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                throw new IOException("file " + file + " is not quantized matrix");
+            }
+
+            int code = buf.getInt();
+            int rows = buf.getInt();
+            int cols = buf.getInt();
+
+            if (code < 0 || code >= Encoding.values().length || rows < 0 || cols < 0) {
+                throw new IOException("file " + file + " has damaged header");
+            }
+
+            Encoding encoding = Encoding.values()[code];
+            long size = 20 + (encoding == Encoding.INT8 ? 8L * cols : 0) + (long) rows * cols * encoding.bytes;
+
+            if (size != ch.size()) {
+                throw new IOException("file " + file + " has " + ch.size() + " B, header describes " + size + " B");
+            }
+
+            if (encoding == Encoding.INT8) {
+                float[] min = new float[cols];
+                float[] scale = new float[cols];
+
+                for (int c = 0; c < cols; c++) {
+                    min[c] = buf.getFloat();
+                    scale[c] = buf.getFloat();
+                }
+
+                byte[] bytes = new byte[Math.multiplyExact(rows, cols)];
+                buf.get(bytes);
+                return new QuantizedMatrix(rows, cols, encoding, bytes, null, min, scale);
+            }
+
+            short[] halfs = new short[Math.multiplyExact(rows, cols)];
+            buf.asShortBuffer().get(halfs);
+            return new QuantizedMatrix(rows, cols, encoding, null, halfs, null, null);
+        } catch (BufferUnderflowException | ArithmeticException | IllegalArgumentException e) {
+            // too large file cannot be mapped or read to arrays
+            throw new IOException("file " + file + " is damaged or too large", e);
+        }
+    }
+
+    /**
+     * Compares size, decoding error and cross-validated accuracy of features
+     * stored as floats and in both encodings.
+     * @param data          matrix of size N x D, one sample per row
+     * @param labels        classes of size N x 1
+     * @param selection     cross-validation settings
+     * @param params        parameters of SVM
+     * @param report        output table with one line per representation
+     * @return              accuracy of floats, INT8 and FLOAT16
+     */
+    static double[] compare(Mat data, Mat labels, ModelSelection selection, ModelSelection.Params params, StringBuilder report) {
+        double[] accuracy = new double[1 + Encoding.values().length];
+        report.append(String.format(Locale.ROOT, "%-8s %12s %12s %12s %10s%n", "encoding", "bytes", "max error", "mean error", "accuracy"));
+
+        accuracy[0] = selection.search(data, labels, List.of(params)).get(0).accuracy;
+        report.append(String.format(Locale.ROOT, "%-8s %12d %12s %12s %9.2f%%%n", "FLOAT32", data.total() * 4, "-", "-", accuracy[0] * 100));
+
+        float[] original = new float[data.cols()];
+        float[] decoded = new float[data.cols()];
+
+        for (Encoding e : Encoding.values()) {
+            QuantizedMatrix q = quantize(data, e);
+            double maxError = 0;
+            double sumError = 0;
+
+            for (int r = 0; r < data.rows(); r++) {
+                data.get(r, 0, original);
+                q.row(r, decoded, 0);
+
+                for (int c = 0; c < original.length; c++) {
+                    double err = Math.abs(original[c] - decoded[c]);
+                    maxError = Math.max(maxError, err);
+                    sumError += err;
+                }
+            }
+
+            Mat m = q.toMat();
+            accuracy[1 + e.ordinal()] = selection.search(m, labels, List.of(params)).get(0).accuracy;
+            m.release();
+
+            report.append(String.format(Locale.ROOT, "%-8s %12d %12.3g %12.3g %9.2f%%%n", e, q.bytes(), maxError,
+                    sumError / Math.max(1, data.total()), accuracy[1 + e.ordinal()] * 100));
+        }
+
+        return accuracy;
+    }
+
+    /**
+     * Checks that quantized features lose negligible accuracy. Features of
+     * CSV file with labels in the first column are cross-validated as floats
+     * and in both encodings, exit status is 1 if accuracy of any encoding is
+     * lower by more than given number of percentage points.
+     * @param args  CSV file, [maximal loss of accuracy in percentage points, default 1]
+     * @throws IOException 
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: QuantizedMatrix data.csv [max-loss-pp]");
+            System.exit(2);
+        }
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        double maxLoss = args.length > 1 ? Double.parseDouble(args[1]) / 100 : 0.01;
+        DataHandler handler = new DataHandler();
+        Mat all = handler.readCsv(args[0]);
+        Mat labels = handler.getLabel(all);
+        Mat data = handler.getData(all).clone();
+
+        // default parameters of CvSVM used by Recognizer.createModel
+        ModelSelection.Params params = new ModelSelection.Params(CvSVM.RBF, 1, 1, 0, 0);
+        StringBuilder report = new StringBuilder();
+        double[] accuracy = compare(data, labels, new ModelSelection(), params, report);
+        System.out.print(report);
+
+        for (Encoding e : Encoding.values()) {
+            double loss = accuracy[0] - accuracy[1 + e.ordinal()];
+
+            if (loss > maxLoss) {
+                System.out.printf(Locale.ROOT, "%s loses %.2f percentage points of accuracy%n", e, loss * 100);
+                System.exit(1);
+            }
+        }
+
+        System.out.println("quantized features are within tolerance");
+    }
+}
@@ -0,0 +1,430 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Rect;
+import org.opencv.highgui.Highgui;
+
+
+/**
+ * Long-lived HTTP service predicting orientation and gender, built on the
+ * HTTP server of the JDK. Models are loaded once at start, samples of
+ * concurrent requests are predicted together by MicroBatcher.
+ * 
+ * Endpoints, results are returned as text, one class per line:
+ *   POST /{model}/features   rows of comma separated HOG features, one sample per line
+ *   POST /{model}/image      encoded grayscale image of one person (PNG, JPEG or BMP),
+ *                            not larger than padded size of the model
+ * Bodies larger than maxBodyBytes are rejected with 413.
+ *   GET  /health             "ok"
+ *   GET  /metrics            metrics in Prometheus text format
+ * where {model} is orientation or gender.
+ */
+public class RecognitionServer {
+
+    // maximum waiting of request for its results
+    static final long timeoutMillis = 10_000;
+
+    // maximum size of request body
+    static final int maxBodyBytes = Integer.getInteger("recognizer.maxBodyBytes", 4 << 20);
+
+    /**
+     * Request body larger than maxBodyBytes.
+     */
+    private static final class TooLargeException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException() {
+            super("request body is larger than " + maxBodyBytes + " B");
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final List<MicroBatcher> batchers = new ArrayList<>();
+
+    /**
+     * Creates server, it is started by start().
+     * @param port      port to listen on, 0 for any free port
+     * @param threads   number of threads handling requests
+     * @throws IOException 
+     */
+    public RecognitionServer(int port, int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "recognition-http");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+
+        server.createContext("/health", ex -> respond(ex, 200, "ok\n"));
+        server.createContext("/metrics", ex -> respond(ex, 200, MetricsExporter.prometheus()));
+    }
+
+    /**
+     * Publishes model under given name.
+     * @param name          name used in paths of endpoints
+     * @param recognizer    recognizer with loaded model
+     * @param maxBatch      maximum number of samples predicted at once
+     * @param maxWaitMicros maximum waiting of sample for other samples in microseconds
+     * @return              this server
+     */
+    public RecognitionServer model(String name, Recognizer recognizer, int maxBatch, long maxWaitMicros) {
+        MicroBatcher batcher = new MicroBatcher(recognizer, "batcher-" + name, maxBatch, maxWaitMicros,
+                TimeUnit.MICROSECONDS, 64 * maxBatch);
+        batchers.add(batcher);
+
+        server.createContext("/" + name + "/features", ex -> handle(ex, () -> features(ex, batcher)));
+        server.createContext("/" + name + "/image", ex -> handle(ex, () -> image(ex, recognizer, batcher)));
+        return this;
+    }
+
+    /**
+     * Starts accepting requests.
+     * @return  this server
+     */
+    public RecognitionServer start() {
+        server.start();
+        return this;
+    }
+
+    /**
+     * Port the server listens on.
+     * @return  port
+     */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops server, waits up to one second for running requests.
+     */
+    public void stop() {
+        server.stop(1);
+
+        for (MicroBatcher b : batchers) {
+            b.close();
+        }
+
+        executor.shutdown();
+    }
+
+    /**
+     * Body of request returning classes of samples.
+     */
+    private interface Prediction {
+        List<CompletableFuture<Float>> submit() throws IOException;
+    }
+
+    /**
+     * Handles prediction request, maps errors to HTTP status codes.
+     * @param ex            exchange
+     * @param prediction    submission of samples
+     * @throws IOException 
+     */
+    private void handle(HttpExchange ex, Prediction prediction) throws IOException {
+        long start = Metrics.start();
+
+        try {
+            if (!"POST".equals(ex.getRequestMethod())) {
+                respond(ex, 405, "use POST\n");
+                return;
+            }
+
+            List<CompletableFuture<Float>> futures = prediction.submit();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            StringBuilder sb = new StringBuilder();
+
+            for (CompletableFuture<Float> f : futures) {
+                sb.append(f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)).append('\n');
+            }
+
+            respond(ex, 200, sb.toString());
+        } catch (TooLargeException e) {
+            respond(ex, 413, e.getMessage() + "\n");
+        } catch (IllegalArgumentException e) {
+            respond(ex, 400, e.getMessage() + "\n");
+        } catch (RejectedExecutionException e) {
+            respond(ex, 503, e.getMessage() + "\n");
+        } catch (TimeoutException e) {
+            respond(ex, 504, "prediction timed out\n");
+        } catch (ExecutionException e) {
+            respond(ex, 500, e.getCause() + "\n");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(ex, 503, "server is stopping\n");
+        } catch (RuntimeException e) {
+            respond(ex, 500, e + "\n");
+        } finally {
+            Metrics.request.stop(start);
+        }
+    }
+
+    /**
+     * Submits feature rows of request body. All rows are parsed before the
+     * first one is submitted, if a row is rejected the submitted ones are
+     * cancelled, so no batch capacity is spent on failed request.
+     * @param ex        exchange
+     * @param batcher   batcher of model
+     * @return          futures of classes, one per line
+     * @throws IOException 
+     */
+    private List<CompletableFuture<Float>> features(HttpExchange ex, MicroBatcher batcher) throws IOException {
+        String body = new String(readBody(ex), StandardCharsets.US_ASCII);
+        List<float[]> rows = new ArrayList<>();
+        int lineNo = 0;
+
+        for (String line : body.split("\n")) {
+            lineNo++;
+            line = line.trim();
+
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            float[] row = new float[batcher.cols()];
+
+            try {
+                DataHandler.parseRow(line.split(","), row, 0, row.length, lineNo);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+
+            rows.add(row);
+        }
+
+        if (rows.isEmpty()) {
+            throw new IllegalArgumentException("no samples in request");
+        }
+
+        List<CompletableFuture<Float>> futures = new ArrayList<>(rows.size());
+
+        try {
+            for (float[] row : rows) {
+                futures.add(batcher.submit(row));
+            }
+        } catch (RuntimeException e) {
+            for (CompletableFuture<Float> f : futures) {
+                f.cancel(false);
+            }
+
+            throw e;
+        }
+
+        return futures;
+    }
+
+    /**
+     * Computes features of image in request body and submits them.
+     * @param ex            exchange
+     * @param recognizer    recognizer of model
+     * @param batcher       batcher of model
+     * @return              future class of image
+     * @throws IOException 
+     */
+    private List<CompletableFuture<Float>> image(HttpExchange ex, Recognizer recognizer, MicroBatcher batcher) throws IOException {
+        RecognizerConfig config = recognizer.config();
+        byte[] body = readBody(ex);
+
+        // size from header, large image is not decoded at all
+        int[] size = imageSize(body);
+
+        if (size == null) {
+            throw new IllegalArgumentException("unsupported image format, use PNG, JPEG or BMP");
+        }
+
+        if (size[0] <= 0 || size[1] <= 0) {
+            throw new IllegalArgumentException("invalid size of image");
+        }
+
+        if (size[1] > config.paddHeightMax || size[0] > config.paddWidthMax) {
+            throw new IllegalArgumentException("image is larger than " + config.paddWidthMax + "x" + config.paddHeightMax);
+        }
+
+        MatOfByte buf = new MatOfByte(body);
+        Mat img = Highgui.imdecode(buf, Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+        buf.release();
+
+        try {
+            if (img.empty()) {
+                throw new IllegalArgumentException("image cannot be decoded");
+            }
+
+            if (img.rows() > config.paddHeightMax || img.cols() > config.paddWidthMax) {
+                throw new IllegalArgumentException("image is larger than " + config.paddWidthMax + "x" + config.paddHeightMax);
+            }
+
+            Detection d = recognizer.describe(img, new Detection(new Rect(0, 0, img.cols(), img.rows()), 0, null, null));
+            float[] row = new float[batcher.cols()];
+            d.features.get(0, 0, row);
+            d.release();
+
+            return List.of(batcher.submit(row));
+        } finally {
+            img.release();
+        }
+    }
+
+    /**
+     * Reads whole body of request.
+     * @param ex    exchange
+     * @return      body
+     * @throws IOException 
+     */
+    private static byte[] readBody(HttpExchange ex) throws IOException {
+        String length = ex.getRequestHeaders().getFirst("Content-Length");
+
+        try (InputStream in = ex.getRequestBody()) {
+            if (length != null && Long.parseLong(length.trim()) > maxBodyBytes) {
+                throw new TooLargeException();
+            }
+
+            byte[] body = in.readNBytes(maxBodyBytes + 1);
+
+            if (body.length > maxBodyBytes) {
+                throw new TooLargeException();
+            }
+
+            return body;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid Content-Length: " + length);
+        }
+    }
+
+    /**
+     * Reads size of image from header of PNG, JPEG or BMP file.
+     * @param b     encoded image
+     * @return      width and height, null if format is not known
+     */
+    static int[] imageSize(byte[] b) {
+        // PNG, IHDR chunk is the first one
+        if (b.length >= 24 && (b[0] & 0xff) == 0x89 && b[1] == 'P' && b[2] == 'N' && b[3] == 'G') {
+            return new int[] {bigEndian(b, 16, 4), bigEndian(b, 20, 4)};
+        }
+
+        // BMP, BITMAPINFOHEADER, height is negative for top-down bitmap
+        if (b.length >= 26 && b[0] == 'B' && b[1] == 'M') {
+            int width = littleEndian(b, 18);
+            int height = littleEndian(b, 22);
+            return new int[] {width, Math.abs(height)};
+        }
+
+        // JPEG, size is in start of frame segment
+        if (b.length >= 4 && (b[0] & 0xff) == 0xff && (b[1] & 0xff) == 0xd8) {
+            int i = 2;
+
+            while (i + 9 < b.length) {
+                if ((b[i] & 0xff) != 0xff) {
+                    return null;
+                }
+
+                int marker = b[i + 1] & 0xff;
+
+                // fill bytes and markers without segment
+                if (marker == 0xff) {
+                    i++;
+                    continue;
+                }
+
+                if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                    i += 2;
+                    continue;
+                }
+
+                if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                    return new int[] {bigEndian(b, i + 7, 2), bigEndian(b, i + 5, 2)};
+                }
+
+                i += 2 + bigEndian(b, i + 2, 2);
+            }
+        }
+
+        return null;
+    }
+
+    private static int bigEndian(byte[] b, int offset, int n) {
+        int v = 0;
+
+        for (int i = 0; i < n; i++) {
+            v = (v << 8) | (b[offset + i] & 0xff);
+        }
+
+        return v;
+    }
+
+    private static int littleEndian(byte[] b, int offset) {
+        return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8 | (b[offset + 2] & 0xff) << 16 | (b[offset + 3] & 0xff) << 24;
+    }
+
+    /**
+     * Sends text response and closes exchange.
+     * @param ex        exchange
+     * @param status    HTTP status code
+     * @param text      body of response
+     * @throws IOException 
+     */
+    private static void respond(HttpExchange ex, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        ex.sendResponseHeaders(status, bytes.length);
+
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Starts service.
+     * @param args  port, orientation model, gender model, [max batch size, max wait in microseconds, threads]
+     * @throws IOException 
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("usage: RecognitionServer port orientation-model gender-model [max-batch max-wait-us threads]");
+            System.exit(1);
+        }
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        int port = Integer.parseInt(args[0]);
+        int maxBatch = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+        long maxWait = args.length > 4 ? Long.parseLong(args[4]) : 2000;
+        int threads = args.length > 5 ? Integer.parseInt(args[5]) : 4 * Runtime.getRuntime().availableProcessors();
+
+        Recognizer orientation = new Recognizer();
+        orientation.loadModel(args[1]);
+
+        // gender model is trained on 71x71 images, see Main
+        int imgSize = 71;
+        Recognizer gender = new Recognizer(RecognizerConfig.builder().padding(imgSize, imgSize).build());
+        gender.loadModel(args[2]);
+
+        // load models now, not on the first request
+        orientation.modelHandle().get();
+        gender.modelHandle().get();
+
+        RecognitionServer server = new RecognitionServer(port, threads)
+                .model("orientation", orientation, maxBatch, maxWait)
+                .model("gender", gender, maxBatch, maxWait)
+                .start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        System.out.println("listening on port " + server.port());
+    }
+}
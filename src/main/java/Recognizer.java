@@ -1,7 +1,16 @@
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
@@ -11,7 +20,6 @@ import org.opencv.core.MatOfPoint;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
-import org.opencv.highgui.Highgui;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.imgproc.Moments;
 import org.opencv.ml.CvSVM;
@@ -21,31 +29,53 @@ import java.util.List;
 
 public class Recognizer {
 
-    // settings for seperating persons int the image
-    static int paddHeightMax = 100;
-    static int paddWidthMax = 110;
-    static final int medianSize = 5; // need to be an odd number
-    static final int minShapeSize = 300;
+    // settings of detection and features
+    private final RecognizerConfig config;
 
     // size of input image
     int imgHeight;
     int imgWidth;
 
-    // person detection settings
-    static final int detectBorder = 10;
-    static final int rh = 10; // half size of rectangle around persons 
+    // file with stored features of training images
+    static final String featureStoreName = "features.bin";
 
-    // HoG
-    static final int sizeCell = 6;
-    static final int sizeBlock = 3;
-    static final int hogBins = 9;
-    static final int maxDeg = 360;
-    
-    static Mat hogFeatures;
+    // workspace of HOG computation, one per thread
+    private final ThreadLocal<HogExtractor> hogExtractor = new ThreadLocal<>();
+
+    // temporary matrices, one arena per thread
+    private final ThreadLocal<MatArena> arena = ThreadLocal.withInitial(MatArena::forThread);
+
+    // batches up to this size are predicted in calling thread
+    static final int minParallelBatch = 32;
 
     // SVM orientation
     CvSVM orientationSVM = new CvSVM();
 
+    // shared model loaded from file, null when model is trained by this instance
+    private volatile ModelRegistry.Handle model;
+    private volatile int trainedVersion;
+
+    // projection of features of model trained by this instance, null if not used
+    private volatile PcaProjection trainedPca;
+
+    // features and classes of already seen crops, null if caching is disabled
+    private volatile FeatureCache cache;
+
+    /**
+     * Creates recognizer with settings of orientation model.
+     */
+    public Recognizer() {
+        this(RecognizerConfig.DEFAULT);
+    }
+
+    /**
+     * Creates recognizer with given settings.
+     * @param config    settings of detection and features
+     */
+    public Recognizer(RecognizerConfig config) {
+        this.config = config;
+    }
+
     /*
     public Recognizer(Mat labels, Mat data) {
         orientationSVM = new CvSVM();
@@ -55,47 +85,227 @@ public class Recognizer {
     */
 
     /**
-     * Loads a model from XML file.
+     * Uses a model from XML file or from binary file created by ModelConverter.
+     * The model is shared by all recognizers and loaded on first prediction.
      * @param filename 
      */
     public void loadModel(String filename) {
-        orientationSVM.load(filename);
+        model = ModelRegistry.get(filename);
+    }
+
+    /**
+     * Handle of shared model.
+     * @return  handle or null if model was trained by this instance
+     */
+    public ModelRegistry.Handle modelHandle() {
+        return model;
+    }
+
+    /**
+     * Version of model, changes with every loaded or trained model.
+     * @return  version
+     */
+    long modelVersion() {
+        ModelRegistry.Handle handle = model;
+
+        if (handle != null) {
+            return ((long) handle.source().hashCode() << 32) | handle.version();
+        }
+
+        return -1 - trainedVersion;
+    }
+
+    /**
+     * Sets cache of features and classes used by describe and predict(Detection).
+     * @param cache     cache with feature length of actual layout, null disables caching
+     */
+    public void cache(FeatureCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Cache of features and classes.
+     * @return  cache or null if caching is disabled
+     */
+    public FeatureCache cache() {
+        return cache;
+    }
+
+    /**
+     * Model used for prediction.
+     */
+    private SvmPredictor model() {
+        ModelRegistry.Handle handle = model;
+
+        if (handle != null) {
+            return handle.get();
+        }
+
+        PcaProjection pca = trainedPca;
+        return pca != null ? pca.apply(new NativeSvm(orientationSVM)) : new NativeSvm(orientationSVM);
     }
     
     /**
      * Creates a model, then it stores to XML file in the same directory.
+     * Features of images which did not change since the last run are taken
+     * from feature store in the same directory, the store is updated afterwards.
      * @param dir   path to directory with training data 
+     * @throws IOException
+     */
+    public void createModel(String dir) throws IOException {
+        createModel(dir, new TrainingSetBuilder(this));
+    }
+
+    /**
+     * Creates a model using given builder of training data, then it stores
+     * to XML file in the same directory.
+     * @param dir       path to directory with training data 
+     * @param builder   builder configured with number of workers and listener
+     * @throws IOException
+     */
+    public void createModel(String dir, TrainingSetBuilder builder) throws IOException {
+        TrainingSetBuilder.TrainingSet set = trainingSet(dir, builder);
+
+        // reduce features
+        PcaProjection pca = PcaProjection.fit(set.data, config);
+        Mat data = pca != null ? pca.project(set.data) : set.data;
+
+        // train model
+        orientationSVM.train(data, set.labels);
+        trained(pca);
+        
+        // save model
+        save(dir + "model.xml", pca);
+
+        if (pca != null) {
+            data.release();
+        }
+    }
+
+    /**
+     * Creates a model with parameters selected by cross-validation, then it
+     * stores the best one to XML file in the same directory. Features are
+     * computed only once for all configurations.
+     * @param dir           path to directory with training data 
+     * @param builder       builder configured with number of workers and listener
+     * @param selection     cross-validation settings
+     * @param grid          configurations of SVM
+     * @return              scores of all configurations, the best one first
+     * @throws IOException
+     */
+    public List<ModelSelection.Score> createModel(String dir, TrainingSetBuilder builder, ModelSelection selection,
+            List<ModelSelection.Params> grid) throws IOException {
+        TrainingSetBuilder.TrainingSet set = trainingSet(dir, builder);
+
+        // reduce features
+        PcaProjection pca = PcaProjection.fit(set.data, config);
+        Mat data = pca != null ? pca.project(set.data) : set.data;
+
+        // select parameters
+        List<ModelSelection.Score> scores = selection.search(data, set.labels, grid);
+
+        // train model with the best parameters on all data
+        orientationSVM.train(data, set.labels, new Mat(), new Mat(), scores.get(0).params.toCvParams());
+        trained(pca);
+
+        // save model
+        save(dir + "model.xml", pca);
+
+        if (pca != null) {
+            data.release();
+        }
+
+        return scores;
+    }
+
+    /**
+     * Compares accuracy and speed of SVM on features projected to given
+     * numbers of principal components.
+     * @param dir           path to directory with training data 
+     * @param builder       builder configured with number of workers and listener
+     * @param components    numbers of components, 0 means features without projection
+     * @param selection     cross-validation settings
+     * @param params        parameters of SVM
+     * @return              table with accuracy and times of every dimension
+     * @throws IOException
      */
-    public void createModel(String dir) {
-        Mat labels = new Mat(0, 0, CvType.CV_32FC1);
-        Mat data = new Mat(0, 0, CvType.CV_32FC1);
+    public String pcaReport(String dir, TrainingSetBuilder builder, int[] components, ModelSelection selection,
+            ModelSelection.Params params) throws IOException {
+        TrainingSetBuilder.TrainingSet set = trainingSet(dir, builder);
+        return PcaProjection.report(set.data, set.labels, components, selection, params);
+    }
 
+    /**
+     * Uses model trained by this instance.
+     */
+    private void trained(PcaProjection pca) {
+        trainedPca = pca;
+        model = null;
+        trainedVersion++;
+    }
+
+    /**
+     * Saves trained model and its projection, old projection is removed.
+     */
+    private void save(String filename, PcaProjection pca) throws IOException {
+        orientationSVM.save(filename);
+
+        File pcaFile = PcaProjection.fileOf(filename);
+
+        if (pca != null) {
+            pca.write(pcaFile);
+        } else {
+            Files.deleteIfExists(pcaFile.toPath());
+        }
+    }
+
+    /**
+     * Computes features of training images, features of images which did not
+     * change since the last run are taken from feature store.
+     */
+    private TrainingSetBuilder.TrainingSet trainingSet(String dir, TrainingSetBuilder builder) throws IOException {
         // get all file names
         List<String> listFileNames = getFilenames(dir);
 
-        // create cells
-        List<Rect> cells = genBlocks(paddHeightMax, paddWidthMax, sizeCell, sizeCell);
-
-        // create blocks
-        List<Rect> blocks = genBlocks((int) Math.floor(paddHeightMax / sizeCell), (int) Math.floor(paddWidthMax / sizeCell) * hogBins, sizeBlock, sizeBlock * hogBins);
+        // load features computed by previous runs
+        File storeFile = new File(dir, featureStoreName);
+        FeatureStore store = FeatureStore.load(storeFile, featureGeometry());
 
         // compute feaures and get names of classes
-        for (String f : listFileNames) {
-            Mat img = Highgui.imread(dir+f, CvType.CV_8U);
-            Mat hogFeature = hog(img, cells, blocks);
-            float label = Float.parseFloat(f.substring(0, 1));
-            
-            Mat l = new Mat(1, 1, CvType.CV_32FC1, new Scalar(label));
-            labels.push_back(l);
-            
-            data.push_back(hogFeature);
-        }
+        TrainingSetBuilder.TrainingSet set = builder.build(dir, listFileNames, store);
         
-        // train model
-        orientationSVM.train(data, labels);
-        
-        // save model
-        orientationSVM.save(dir + "model.xml");
+        // store features for next run
+        FeatureStore.write(storeFile, set.images, set.labels, set.data, config.storeEncoding, featureGeometry());
+
+        return set;
+    }
+
+    /**
+     * Settings of this recognizer.
+     * @return  configuration
+     */
+    public RecognizerConfig config() {
+        return config;
+    }
+
+    /**
+     * Geometry of HOG features for padding size.
+     * @return  layout of features
+     */
+    HogLayout hogLayout() {
+        return config.layout;
+    }
+
+    /**
+     * All settings which change values of HOG features, identifies stored
+     * and cached features.
+     * @return  geometry of layout followed by maximal degree of orientation
+     */
+    int[] featureGeometry() {
+        int[] layout = config.layout.geometry();
+        int[] geometry = Arrays.copyOf(layout, layout.length + 1);
+        geometry[layout.length] = config.maxDeg;
+        return geometry;
     }
 
     /**
@@ -104,7 +314,114 @@ public class Recognizer {
      * @return          predicted class
      */
     public float predict(Mat sample) {
-        return orientationSVM.predict(sample);
+        long start = Metrics.start();
+        float label = model().predict(sample, false);
+        Metrics.predict.stop(start);
+        return label;
+    }
+
+    /**
+     * Predicts a class of detected body, class of already seen crop is taken from cache.
+     * @param detection     body with features
+     * @return              predicted class
+     */
+    public float predict(Detection detection) {
+        FeatureCache c = cache;
+
+        if (c == null || detection.key == 0) {
+            return predict(detection.features);
+        }
+
+        // load model first, version of loaded model is known then
+        model();
+        long version = modelVersion();
+        float label = c.label(detection.key, version);
+
+        if (Float.isNaN(label)) {
+            label = predict(detection.features);
+            c.putLabel(detection.key, version, label);
+        }
+
+        return label;
+    }
+
+    /**
+     * Predicts classes of all rows of given matrix.
+     * @param samples   matrix of size N x D, one sample per row
+     * @return          predicted classes
+     */
+    public float[] predictBatch(Mat samples) {
+        return predictBatch(samples, null, false);
+    }
+
+    /**
+     * Predicts classes of all rows of given matrix. Rows are classified in
+     * parallel when there is enough of them.
+     * @param samples       matrix of size N x D, one sample per row
+     * @param out           buffer for results, new one is created if it is null or too small
+     * @param returnDFVal   return value of decision function instead of class (only for 2 classes)
+     * @return              predicted classes or decision values, first N items of buffer
+     */
+    public float[] predictBatch(Mat samples, float[] out, boolean returnDFVal) {
+        int n = samples.rows();
+        float[] results = out != null && out.length >= n ? out : new float[n];
+        SvmPredictor svm = model();
+
+        forEachChunk(n, (from, to) -> {
+            long start = Metrics.start();
+            svm.predictBatch(samples.rowRange(from, to), results, from, returnDFVal);
+
+            // time per sample
+            if (Metrics.enabled) {
+                long nanos = (System.nanoTime() - start) / (to - from);
+                for (int i = from; i < to; i++) {
+                    Metrics.predict.record(nanos);
+                }
+            }
+        });
+
+        return results;
+    }
+
+    /**
+     * Predicts classes of given samples.
+     * @param samples       samples of size 1 x D
+     * @param out           buffer for results, new one is created if it is null or too small
+     * @param returnDFVal   return value of decision function instead of class (only for 2 classes)
+     * @return              predicted classes or decision values, first N items of buffer
+     */
+    public float[] predictBatch(List<Mat> samples, float[] out, boolean returnDFVal) {
+        int n = samples.size();
+        float[] results = out != null && out.length >= n ? out : new float[n];
+        SvmPredictor svm = model();
+
+        forEachChunk(n, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                long start = Metrics.start();
+                results[i] = svm.predict(samples.get(i), returnDFVal);
+                Metrics.predict.stop(start);
+            }
+        });
+
+        return results;
+    }
+
+    /**
+     * Splits range of rows into chunks processed in common fork-join pool.
+     * Small ranges are processed in calling thread.
+     * @param n         number of rows
+     * @param chunk     processing of rows from (inclusive) to (exclusive)
+     */
+    private void forEachChunk(int n, BiConsumer<Integer, Integer> chunk) {
+        if (n <= minParallelBatch) {
+            chunk.accept(0, n);
+            return;
+        }
+
+        int chunks = Math.min(ForkJoinPool.getCommonPoolParallelism() * 4, (n + minParallelBatch - 1) / minParallelBatch);
+        int size = (n + chunks - 1) / chunks;
+
+        IntStream.range(0, chunks).parallel().forEach(c -> chunk.accept(c * size, Math.min(n, (c + 1) * size)));
     }
 
     /**
@@ -112,15 +429,17 @@ public class Recognizer {
      * @param img       image from which is histogram computed
      * @param nbins     number of bins used for histogram computation
      * @param maxValue  maximum intensity value which will be examined
-     * @return          1D histogram
+     * @param scope     scope of temporary matrices
+     * @return          1D histogram, valid until scope is closed
      */
-    private Mat compHist(Mat img, int nbins, int maxValue) {
+    private Mat compHist(Mat img, int nbins, int maxValue, MatArena.Scope scope) {
         List<Mat> imgHist = Arrays.asList(img);
-        MatOfInt histSize = new MatOfInt(nbins);
-        MatOfFloat ranges = new MatOfFloat(0, maxValue);
-        Mat hist = new Mat();
+        MatOfInt histSize = scope.track(new MatOfInt(nbins));
+        MatOfFloat ranges = scope.track(new MatOfFloat(0, maxValue));
+        MatOfInt channels = scope.track(new MatOfInt(0));
+        Mat hist = scope.mat(nbins, 1, CvType.CV_32FC1);
 
-        Imgproc.calcHist(imgHist, new MatOfInt(0), new Mat(), hist, histSize, ranges);
+        Imgproc.calcHist(imgHist, channels, scope.mat(), hist, histSize, ranges);
 
         return hist;
     }
@@ -145,19 +464,26 @@ public class Recognizer {
     /**
      * Get all PNG file names from given directory.
      * @param dir   path to directory
-     * @return      list of all PNG file names
+     * @return      sorted list of all PNG file names
+     * @throws IOException
      */
-    public List<String> getFilenames(String dir) {
+    public List<String> getFilenames(String dir) throws IOException {
         List<String> results = new ArrayList<>();
 
-        File[] files = new File(dir).listFiles();
+        // entries are read lazily, not as one array
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(dir))) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
 
-        for (File file : files) {
-            if (file.isFile() && file.getName().toLowerCase().endsWith(".png")) {
-                results.add(file.getName());
+                if (name.toLowerCase().endsWith(".png") && Files.isRegularFile(file)) {
+                    results.add(name);
+                }
             }
         }
 
+        // keep order of training data independent of file system
+        Collections.sort(results);
+
         return results;
     }
 
@@ -172,22 +498,22 @@ public class Recognizer {
         int extraVertPadd = 0;
         int extraHoriPadd = 0;
 
-        int vert = (paddHeightMax - img.height()) / 2;
-        int hori = (paddWidthMax - img.width()) / 2;
+        int vert = (config.paddHeightMax - img.height()) / 2;
+        int hori = (config.paddWidthMax - img.width()) / 2;
 
         Scalar black = new Scalar(0, 0, 0);
 
-        Core.copyMakeBorder(img, paddImg, vert, vert, hori, hori, Core.BORDER_CONSTANT, black);
-
-        if (paddImg.height() < paddHeightMax) {
+        // odd difference of size is added to bottom and right side
+        if (img.height() + 2 * vert < config.paddHeightMax) {
             extraVertPadd = 1;
         }
 
-        if (paddImg.width() < paddWidthMax) {
+        if (img.width() + 2 * hori < config.paddWidthMax) {
             extraHoriPadd = 1;
         }
 
-        Core.copyMakeBorder(paddImg, paddImg, 0, extraVertPadd, 0, extraHoriPadd, Core.BORDER_CONSTANT, black);
+        // whole padding in one step, without intermediate image
+        Core.copyMakeBorder(img, paddImg, vert, vert + extraVertPadd, hori, hori + extraHoriPadd, Core.BORDER_CONSTANT, black);
 
         return paddImg;
     }
@@ -201,47 +527,79 @@ public class Recognizer {
      * @return          filtered image
      */
     public Mat maskFilter(Mat img, Mat mask, int nbins, int maxValue) {
-        // filtering background
-        Mat diff = new Mat();
-        Core.subtract(img, mask, diff);
+        long start = Metrics.start();
 
-        // compute histogram
-        Mat hist = compHist(img, nbins, maxValue);
+        try (MatArena.Scope scope = arena().open()) {
+            // filtering background
+            Mat diff = scope.mat(img.rows(), img.cols(), img.type());
+            Core.subtract(img, mask, diff);
+
+            // compute histogram
+            Mat hist = compHist(img, nbins, maxValue, scope);
+            float[] counts = new float[nbins];
+            hist.get(0, 0, counts);
 
+            // using final mask to filter background
+            Mat binMask = scope.mat(diff.rows(), diff.cols(), diff.type());
+            Imgproc.threshold(diff, binMask, maskThreshold(counts, nbins, maxValue), 1, 0);
+
+            Mat filtered = new Mat();
+            Core.multiply(img, binMask, filtered);
+            Metrics.allocated(diff, hist, binMask, filtered);
+            Metrics.maskFilter.stop(start);
+
+            return filtered;
+        }
+    }
+
+    /**
+     * Finds threshold of difference between image and mask of scene.
+     * @param hist      histogram of image
+     * @param nbins     number of bins used for histogram computation
+     * @param maxValue  maximum intensity value which will be examined
+     * @return          threshold
+     */
+    static int maskThreshold(float[] hist, int nbins, int maxValue) {
         // find how many elements at the end of histogram are zero valued
         int zPos = -1;
-        for (int i = hist.rows() - 1; i >= 0; i--) {
-            if (hist.get(i, 0)[0] != 0.0) {
+        for (int i = nbins - 1; i >= 0; i--) {
+            if (hist[i] != 0) {
                 zPos = i + 1;
                 break;
             }
         }
 
-        // creating bins for histogram similar to GNU Octave ones
-        List<Integer> h = createBins(nbins, maxValue);
-        h = createBins(nbins, h.get(zPos));
-
         // finds first local minimum
-        double tmpLast = hist.get(0, 0)[0];
-        double tmp;
+        float tmpLast = hist[0];
         int locMin = -1;
 
-        for (int i = 1; i < hist.rows(); i++) {
-            tmp = hist.get(i, 0)[0];
-
-            if (tmp > tmpLast) {
+        for (int i = 1; i < nbins; i++) {
+            if (hist[i] > tmpLast) {
                 locMin = i;
                 break;
             } else {
-                tmpLast = tmp;
+                tmpLast = hist[i];
             }
         }
 
-        // using final mask to filter background
-        Mat binMask = new Mat();
-        Imgproc.threshold(diff, binMask, h.get(locMin), 1, 0);
+        if (zPos < 0 || locMin < 0) {
+            throw new IllegalArgumentException("histogram of image has no local minimum");
+        }
+
+        // bins for histogram similar to GNU Octave ones, same as createBins
+        // used twice, but without creating them
+        return bin(nbins, bin(nbins, maxValue, zPos), locMin);
+    }
 
-        return img.mul(binMask);
+    /**
+     * Gets one bin created by createBins.
+     * @param nbins     number of bins used for histogram computation
+     * @param maxValue  maximum intensity value which will be examined
+     * @param i         index of bin
+     * @return          bin
+     */
+    private static int bin(int nbins, int maxValue, int i) {
+        return maxValue / nbins / 2 + i * Math.round(maxValue / nbins);
     }
 
     /**
@@ -254,8 +612,14 @@ public class Recognizer {
     public Point detectHead(Mat img, int nbins, int maxValue) {
         int posBin = 2; // counted from the end
 
+        try (MatArena.Scope scope = arena().open()) {
+            return detectHead(img, nbins, maxValue, posBin, scope);
+        }
+    }
+
+    private Point detectHead(Mat img, int nbins, int maxValue, int posBin, MatArena.Scope scope) {
         // compute histogram
-        Mat hist = compHist(img, nbins, maxValue);
+        Mat hist = compHist(img, nbins, maxValue, scope);
 
         int newBorder = -1;
 
@@ -272,7 +636,7 @@ public class Recognizer {
         h = createBins(nbins, h.get(newBorder));
 
         // get only top of head
-        Mat binMask = new Mat();
+        Mat binMask = scope.mat(img.rows(), img.cols(), img.type());
         int threshold = h.get(nbins - posBin);
         Imgproc.threshold(img, binMask, threshold, maxValue, 0);
 
@@ -289,186 +653,163 @@ public class Recognizer {
     }
 
     /**
-     * Creates a kernel.
-     * @param dim   selection of kernel dimension 
-     * @return      kernel
+     * Computes histogram of oriented gradients from given image.
+     * Workspace of computation is reused by all calls from the same thread.
+     * @param img       image of size config.paddHeightMax x config.paddWidthMax
+     * @return          features 
      */
-    private Mat createKernel(boolean dim) {
-        Mat kernel;
-
-        if (dim) {
-            kernel = new Mat(1, 3, CvType.CV_8S) {
-                {
-                    put(0, 0, -1);
-                    put(0, 1, 0);
-                    put(0, 2, 1);
-                }
-            };
-        } else {
-            kernel = new Mat(3, 1, CvType.CV_8S) {
-                {
-                    put(0, 0, -1);
-                    put(1, 0, 0);
-                    put(2, 0, 1);
-                }
-            };
-        }
-
-        return kernel;
+    public Mat hog(Mat img) {
+        long start = Metrics.start();
+        Mat features = hogExtractor().compute(img);
+        Metrics.hog.stop(start);
+        Metrics.allocated(features);
+        return features;
     }
 
-    // not ready for overlaping
-    public List<Rect> genBlocks(int height, int width, int stepHeight, int stepWidth) {
-        List<Rect> rects = new ArrayList<>();
-        Rect tmpRect;
+    /**
+     * Gets arena of temporary matrices of current thread. Matrices are
+     * recycled by all calls from the same thread.
+     * @return  arena
+     */
+    MatArena arena() {
+        return arena.get();
+    }
 
-        for (int i = 0; i < width; i += stepWidth) {
-            for (int j = 0; j < height; j += stepHeight) {
-                tmpRect = new Rect(i, j, stepWidth, stepHeight);
+    /**
+     * Gets HOG extractor of current thread.
+     * @return  extractor
+     */
+    HogExtractor hogExtractor() {
+        HogExtractor extractor = hogExtractor.get();
 
-                // skips incomplete blocks
-                // these blocks does not contain any neccesary values
-                if ((i + stepWidth) < width && (j + stepHeight) < height) {
-                    rects.add(tmpRect);
-                }
-            }
+        if (extractor == null) {
+            extractor = new HogExtractor(config.layout, config.maxDeg);
+            hogExtractor.set(extractor);
         }
 
-        return rects;
+        return extractor;
     }
-
+    
     /**
-     * Normalize values of matrix according to L2-norm.
-     * @param mat   matrix
-     * @return      normalized matrix
+     * Detects human bodies in image and computes features from them.
+     * Padding and features of particular bodies are computed in parallel.
+     * @param img       image
+     * @param nbins     number of bins used for histogram computation
+     * @param maxValue  maximum intensity value which will be examined
+     * @return          all detected bodies
      */
-    private Mat L2norm(Mat mat) {
-        Mat nMat = new Mat();
-
-        double norm = Core.norm(mat, 2);
-        double squareNorm = Math.pow(norm, 2);
-        double squareE = Math.pow(0.01, 2);
-
-        double divisor = squareNorm + squareE;
-        divisor = Math.sqrt(divisor);
-
-        Mat divisorMat = new Mat();
-        Scalar s = new Scalar(divisor);
-        Core.multiply(Mat.ones(mat.size(), CvType.CV_32F), s, divisorMat);
-
-        Core.divide(mat, divisorMat, nMat);
-        return nMat;
+    public List<Detection> detect(Mat img, int nbins, int maxValue) {
+        return describeAll(img, findBodies(img));
     }
 
     /**
-     * Computes histogram of oriented histograms from given image.
+     * Computes features of all bodies found in image in parallel.
      * @param img       image
-     * @param cells     coordinates of cells
-     * @param blocks    coordinates of blocks
-     * @return          features 
+     * @param bodies    bodies found by findBodies
+     * @return          bodies with padded image and features
      */
-    public Mat hog(Mat img, List<Rect> cells, List<Rect> blocks) {
-        Mat features = new Mat();
-
-        img.convertTo(img, CvType.CV_32F);
-
-        // create convolutional kernels
-        Mat kernely = createKernel(Boolean.FALSE);
-        Mat kernelx = createKernel(Boolean.TRUE);
+    public List<Detection> describeAll(Mat img, List<Detection> bodies) {
+        Detection[] detections = new Detection[bodies.size()];
 
-        // compute gradients
-        Mat dy = new Mat(img.size(), CvType.CV_32F);
-        Mat dx = new Mat(img.size(), CvType.CV_32F);
+        IntStream.range(0, detections.length).parallel().forEach(i -> detections[i] = describe(img, bodies.get(i)));
 
-        Imgproc.filter2D(img, dy, -1, kernely);
-        Imgproc.filter2D(img, dx, -1, kernelx);
+        return Arrays.asList(detections);
+    }
 
-        // compute magnitudes
-        // r = sqrt(dx.^2 + dy.^2);
-        Mat hypx = new Mat(img.size(), CvType.CV_32F);
-        Mat hypy = new Mat(img.size(), CvType.CV_32F);
-        Mat tmpMat = new Mat(img.size(), CvType.CV_32F);
-        Mat mag = new Mat(img.size(), CvType.CV_32F);
-        Mat r = new Mat(img.size(), CvType.CV_32F);
+    /**
+     * Finds shapes of human bodies in image, first step of detection.
+     * @param img       image
+     * @return          bodies without padded image and features
+     */
+    public List<Detection> findBodies(Mat img) {
+        return findBodies(img, new Rect(0, 0, img.cols(), img.rows()), config.minShapeSize);
+    }
 
-        Core.pow(dx, 2, hypx);
-        Core.pow(dy, 2, hypy);
+    /**
+     * Finds shapes of human bodies in region of image.
+     * @param img       image
+     * @param roi       examined region of image
+     * @param minSize   minimal area of body
+     * @return          bodies with rectangles in coordinates of whole image
+     */
+    List<Detection> findBodies(Mat img, Rect roi, int minSize) {
+        long start = Metrics.start();
 
-        Core.add(hypx, hypy, tmpMat);
+        try (MatArena.Scope scope = arena().open()) {
+            boolean whole = roi.x == 0 && roi.y == 0 && roi.width == img.cols() && roi.height == img.rows();
+            Mat part = whole ? img : scope.track(img.submat(roi));
 
-        Core.sqrt(tmpMat, mag);
+            // filtering, regions change size with every call and are not pooled
+            Mat tmpImg = whole ? scope.mat(part.rows(), part.cols(), part.type()) : scope.temp(part.rows(), part.cols(), part.type());
+            Imgproc.medianBlur(part, tmpImg, config.medianSize);
+            Metrics.medianBlur.stop(start);
 
-        // TODO: check if it is really need?
-        // used in Octave to avoid negative values
-        //Core.absdiff(dx, Mat.zeros(img.size(), CvType.CV_8U), dx);
-        Core.magnitude(dx, dy, r);
-        //Mat sub;
-        Mat vectHist = new Mat();
-        List<Mat> listHist = new ArrayList<>();
+            start = Metrics.start();
+            Mat binMask = whole ? scope.mat(part.rows(), part.cols(), part.type()) : scope.temp(part.rows(), part.cols(), part.type());
+            Imgproc.threshold(tmpImg, binMask, config.bodyThreshold, 1, 0);
 
-        // compute histogram from particular cells
-        for (Rect rect : cells) {
-            Mat sub = img.submat(rect);
+            ArrayList<MatOfPoint> contours = new ArrayList<>();
+            Mat hierarchy = scope.mat();
+            Imgproc.findContours(binMask, contours, hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE, roi.tl());
+            Metrics.findContours.stop(start);
+            Metrics.allocated(tmpImg, binMask, hierarchy);
 
-            // TODO: check the correctnes of histogram computation
-            listHist.add(compHist(sub, hogBins, maxDeg));
-        }
+            // skip small shapes
+            List<Detection> bodies = new ArrayList<>();
 
-        // horizontal concatenation of all histograms
-        Core.vconcat(listHist, vectHist);
+            for (MatOfPoint i : contours) {
+                scope.track(i);
+                double area = Imgproc.contourArea(i);
 
-        // reshape vector to matrix
-        vectHist = vectHist.reshape(0, (int) Math.floor(paddHeightMax / sizeCell));
+                if (area > minSize) {
+                    bodies.add(new Detection(Imgproc.boundingRect(i), area, null, null));
+                }
+            }
 
-        List<Mat> listNorm = new ArrayList<>();
-        Mat L2normTmp;
+            Metrics.contoursFound.add(contours.size());
+            Metrics.contoursRejected.add(contours.size() - bodies.size());
 
-        // normalize histograms in particular blocks
-        for (Rect rect : blocks) {
-            Mat sub = vectHist.submat(rect);
-            L2normTmp = L2norm(sub);
-            L2normTmp = L2normTmp.reshape(0, 1);
-            listNorm.add(L2normTmp);
+            return bodies;
         }
-
-        Core.hconcat(listNorm, features);
-
-        return features;
     }
-    
+
     /**
-     * Detects a human body in image and computes features from it.
+     * Computes features of body found in image, second step of detection.
      * @param img       image
-     * @param nbins     number of bins used for histogram computation
-     * @param maxValue  maximum intensity value which will be examined
+     * @param body      body found by findBodies
+     * @return          body with padded image and features
      */
-    public void detect(Mat img, int nbins, int maxValue) {
-        // filtering
-        Mat tmpImg = new Mat();
-        Imgproc.medianBlur(img, tmpImg, medianSize);
-
-        Mat binMask = new Mat();
-        Imgproc.threshold(tmpImg, binMask, 1, 1, 0);
+    public Detection describe(Mat img, Detection body) {
+        long start = Metrics.start();
+        Mat sub = img.submat(body.rect);
 
-        ArrayList<MatOfPoint> contours = new ArrayList<>();
-        Mat hierarchy = new Mat();
-        Imgproc.findContours(binMask, contours, hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+        // add padding to image
+        Mat paddImg = addPadding(sub);
+        sub.release();
+        Metrics.padding.stop(start);
+        Metrics.allocated(paddImg);
 
-        // create cells
-        List<Rect> cells = genBlocks(paddHeightMax, paddWidthMax, sizeCell, sizeCell);
+        FeatureCache c = cache;
+        HogLayout layout = hogLayout();
 
-        // create blocks
-        List<Rect> blocks = genBlocks((int) Math.floor(paddHeightMax / sizeCell), (int) Math.floor(paddWidthMax / sizeCell) * hogBins, sizeBlock, sizeBlock * hogBins);
+        if (c == null || c.featureLength() != layout.length) {
+            return new Detection(body.rect, body.area, paddImg, hog(paddImg));
+        }
 
-        for (MatOfPoint i : contours) {
-            if (Imgproc.contourArea(i) > minShapeSize) {
-                Rect rect = Imgproc.boundingRect(i);
-                Mat sub = img.submat(rect);
+        // same crop has the same features
+        long key = c.key(paddImg, featureGeometry());
+        float[] row = new float[layout.length];
+        Mat features;
 
-                // add padding to image
-                Mat paddImg = addPadding(sub);
-                hogFeatures = hog(paddImg, cells, blocks);
-            }
+        if (c.features(key, row)) {
+            features = new Mat(1, row.length, CvType.CV_32FC1);
+            features.put(0, 0, row);
+        } else {
+            features = hog(paddImg);
+            features.get(0, 0, row);
+            c.putFeatures(key, row);
         }
+
+        return new Detection(body.rect, body.area, paddImg, features, key);
     }
 }
\ No newline at end of file
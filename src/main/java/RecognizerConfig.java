@@ -0,0 +1,263 @@
+/**
+ * Immutable settings of one recognizer.
+ * 
+ * Every recognizer has its own configuration, so recognizers of different
+ * models can run concurrently in one JVM. Geometry of HOG features is
+ * computed once when the configuration is built. Configurations are created
+ * by Builder, defaults are the settings of orientation model.
+ */
+public final class RecognizerConfig {
+
+    /**
+     * Settings of orientation model.
+     */
+    public static final RecognizerConfig DEFAULT = new Builder().build();
+
+    // settings for seperating persons int the image
+    public final int paddHeightMax;
+    public final int paddWidthMax;
+    public final int medianSize; // odd number
+    public final int minShapeSize;
+    public final int bodyThreshold; // pixels brighter than this belong to body after filtering
+
+    // person detection settings
+    public final int detectBorder;
+    public final int rh; // half size of rectangle around persons
+
+    // HoG
+    public final int sizeCell;
+    public final int sizeBlock;
+    public final int blockStride; // smaller than sizeBlock for overlapping blocks
+    public final int hogBins;
+    public final int maxDeg;
+
+    // projection of features to principal components, disabled if both are 0
+    public final int pcaComponents;
+    public final double pcaVariance;
+
+    // encoding of features in feature store, null for floats
+    public final QuantizedMatrix.Encoding storeEncoding;
+
+    // geometry of features of padded window
+    public final HogLayout layout;
+
+    private RecognizerConfig(Builder b) {
+        if (b.paddHeightMax <= 0 || b.paddWidthMax <= 0) {
+            throw new IllegalArgumentException("size of padded window must be positive");
+        }
+
+        if (b.medianSize <= 0 || b.medianSize % 2 == 0) {
+            throw new IllegalArgumentException("size of median filter must be odd positive number");
+        }
+
+        if (b.pcaComponents < 0 || b.pcaVariance < 0 || b.pcaVariance > 1) {
+            throw new IllegalArgumentException("number of components must not be negative and variance must be from 0 to 1");
+        }
+
+        if (b.maxDeg <= 0) {
+            throw new IllegalArgumentException("maximal degree must be positive");
+        }
+
+        paddHeightMax = b.paddHeightMax;
+        paddWidthMax = b.paddWidthMax;
+        medianSize = b.medianSize;
+        minShapeSize = b.minShapeSize;
+        bodyThreshold = b.bodyThreshold;
+        detectBorder = b.detectBorder;
+        rh = b.rh;
+        sizeCell = b.sizeCell;
+        sizeBlock = b.sizeBlock;
+        blockStride = b.blockStride;
+        hogBins = b.hogBins;
+        maxDeg = b.maxDeg;
+        pcaComponents = b.pcaComponents;
+        pcaVariance = b.pcaVariance;
+        storeEncoding = b.storeEncoding;
+
+        layout = HogLayout.of(paddHeightMax, paddWidthMax, sizeCell, sizeBlock, blockStride, hogBins);
+    }
+
+    /**
+     * Creates builder with default settings.
+     * @return  builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Creates builder with settings of this configuration.
+     * @return  builder
+     */
+    public Builder toBuilder() {
+        Builder b = new Builder();
+        b.paddHeightMax = paddHeightMax;
+        b.paddWidthMax = paddWidthMax;
+        b.medianSize = medianSize;
+        b.minShapeSize = minShapeSize;
+        b.bodyThreshold = bodyThreshold;
+        b.detectBorder = detectBorder;
+        b.rh = rh;
+        b.sizeCell = sizeCell;
+        b.sizeBlock = sizeBlock;
+        b.blockStride = blockStride;
+        b.hogBins = hogBins;
+        b.maxDeg = maxDeg;
+        b.pcaComponents = pcaComponents;
+        b.pcaVariance = pcaVariance;
+        b.storeEncoding = storeEncoding;
+        return b;
+    }
+
+    @Override
+    public String toString() {
+        return "window " + paddWidthMax + "x" + paddHeightMax + ", cell " + sizeCell + ", block " + sizeBlock
+                + ", stride " + blockStride + ", bins " + hogBins + ", median " + medianSize + ", min shape " + minShapeSize
+                + (pcaComponents > 0 ? ", PCA " + pcaComponents : pcaVariance > 0 ? ", PCA variance " + pcaVariance : "");
+    }
+
+    /**
+     * Builder of configuration.
+     */
+    public static final class Builder {
+        private int paddHeightMax = 100;
+        private int paddWidthMax = 110;
+        private int medianSize = 5;
+        private int minShapeSize = 300;
+        private int bodyThreshold = 1;
+        private int detectBorder = 10;
+        private int rh = 10;
+        private int sizeCell = 6;
+        private int sizeBlock = 3;
+        private int blockStride = 3;
+        private int hogBins = 9;
+        private int maxDeg = 360;
+        private int pcaComponents;
+        private double pcaVariance;
+        private QuantizedMatrix.Encoding storeEncoding;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets size of padded window from which features are computed.
+         * @param height    height of window
+         * @param width     width of window
+         * @return          this builder
+         */
+        public Builder padding(int height, int width) {
+            paddHeightMax = height;
+            paddWidthMax = width;
+            return this;
+        }
+
+        /**
+         * Sets size of median filter used before contours are searched.
+         * @param size  odd size of filter
+         * @return      this builder
+         */
+        public Builder medianSize(int size) {
+            medianSize = size;
+            return this;
+        }
+
+        /**
+         * Sets minimal area of body.
+         * @param area  area in pixels
+         * @return      this builder
+         */
+        public Builder minShapeSize(int area) {
+            minShapeSize = area;
+            return this;
+        }
+
+        /**
+         * Sets intensity above which filtered pixel belongs to body.
+         * @param threshold     intensity
+         * @return              this builder
+         */
+        public Builder bodyThreshold(int threshold) {
+            bodyThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * Sets settings of person detection.
+         * @param border    border of detection
+         * @param rh        half size of rectangle around persons
+         * @return          this builder
+         */
+        public Builder detection(int border, int rh) {
+            detectBorder = border;
+            this.rh = rh;
+            return this;
+        }
+
+        /**
+         * Sets geometry of HOG features.
+         * @param sizeCell      size of cell in pixels
+         * @param sizeBlock     size of block in cells
+         * @param blockStride   stride of blocks in cells
+         * @param hogBins       number of orientation bins
+         * @return              this builder
+         */
+        public Builder hog(int sizeCell, int sizeBlock, int blockStride, int hogBins) {
+            this.sizeCell = sizeCell;
+            this.sizeBlock = sizeBlock;
+            this.blockStride = blockStride;
+            this.hogBins = hogBins;
+            return this;
+        }
+
+        /**
+         * Sets range of orientations, 180 for unsigned and 360 for signed gradients.
+         * @param maxDeg    maximal degree
+         * @return          this builder
+         */
+        public Builder maxDeg(int maxDeg) {
+            this.maxDeg = maxDeg;
+            return this;
+        }
+
+        /**
+         * Projects features to given number of principal components before training.
+         * @param components    number of components, 0 disables projection
+         * @return              this builder
+         */
+        public Builder pca(int components) {
+            pcaComponents = components;
+            pcaVariance = 0;
+            return this;
+        }
+
+        /**
+         * Projects features to principal components keeping given ratio of variance.
+         * @param variance      retained variance from 0 to 1, 0 disables projection
+         * @return              this builder
+         */
+        public Builder pcaVariance(double variance) {
+            pcaVariance = variance;
+            pcaComponents = 0;
+            return this;
+        }
+
+        /**
+         * Stores computed training features quantized, the store file is 2 or 4 times smaller.
+         * @param encoding      encoding of features, null for floats
+         * @return              this builder
+         */
+        public Builder storeEncoding(QuantizedMatrix.Encoding encoding) {
+            storeEncoding = encoding;
+            return this;
+        }
+
+        /**
+         * Creates configuration.
+         * @return  configuration
+         * @throws IllegalArgumentException if settings are not valid
+         */
+        public RecognizerConfig build() {
+            return new RecognizerConfig(this);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+import org.opencv.core.Mat;
+import org.opencv.ml.CvSVM;
+
+
+/**
+ * Pure Java prediction of trained SVM without native calls.
+ * 
+ * Kernels are computed by tight loops over support vectors stored in one
+ * float array, samples of batch are scored in tiles so every support vector
+ * is read once per tile. Linear models take the same path, CvSVM already
+ * stores them as one vector per decision function. Kernel values and
+ * decision functions are computed in the same order and precision as CvSVM,
+ * so predicted classes and decision values are the same.
+ */
+public final class SvmEngine implements SvmPredictor {
+
+    // number of samples scored together in batch
+    static final int tileSize = 8;
+
+    private final SvmModel model;
+    private final int varCount;
+    private final int svTotal;
+    private final float[] supportVectors;
+
+    // buffers of samples and kernel values, one per thread
+    private final ThreadLocal<float[]> rowBuffer;
+    private final ThreadLocal<float[]> sampleBuffer;
+    private final ThreadLocal<float[]> kernelBuffer;
+
+    public SvmEngine(SvmModel model) {
+        this.model = model;
+        this.varCount = model.varCount;
+        this.svTotal = model.svTotal;
+        this.supportVectors = model.supportVectors;
+
+        rowBuffer = ThreadLocal.withInitial(() -> new float[varCount]);
+        sampleBuffer = ThreadLocal.withInitial(() -> new float[tileSize * varCount]);
+        kernelBuffer = ThreadLocal.withInitial(() -> new float[tileSize * svTotal]);
+    }
+
+    /**
+     * Loads model from XML or binary file.
+     * @param filename  path to model, binary models end with .bin
+     * @return          engine
+     * @throws java.io.IOException 
+     */
+    public static SvmEngine load(String filename) throws java.io.IOException {
+        return new SvmEngine(SvmModel.load(filename));
+    }
+
+    /**
+     * Parameters of model.
+     * @return  model
+     */
+    public SvmModel model() {
+        return model;
+    }
+
+    @Override
+    public float predict(Mat sample, boolean returnDFVal) {
+        checkWidth(sample.total());
+        float[] row = rowBuffer.get();
+        sample.get(0, 0, row);
+        return predict(row, 0, returnDFVal);
+    }
+
+    /**
+     * Predicts class of sample.
+     * @param sample        features
+     * @param returnDFVal   return value of decision function instead of class (only for 2 classes)
+     * @return              predicted class or decision value
+     */
+    public float predict(float[] sample, boolean returnDFVal) {
+        checkWidth(sample.length);
+        return predict(sample, 0, returnDFVal);
+    }
+
+    /**
+     * Checks length of sample, wrong length would be read silently.
+     * @param length    number of features
+     */
+    private void checkWidth(long length) {
+        if (length != varCount) {
+            throw new IllegalArgumentException("sample has " + length + " values, model expects " + varCount);
+        }
+    }
+
+    private float predict(float[] sample, int offset, boolean returnDFVal) {
+        float[] k = kernelBuffer.get();
+        kernel(sample, offset, 1, k);
+        return decide(k, 0, returnDFVal);
+    }
+
+    @Override
+    public void predictBatch(Mat samples, float[] out, int offset, boolean returnDFVal) {
+        checkWidth(samples.cols());
+        int n = samples.rows();
+        float[] buffer = sampleBuffer.get();
+        float[] k = kernelBuffer.get();
+        boolean continuous = samples.isContinuous();
+
+        for (int from = 0; from < n; from += tileSize) {
+            int count = Math.min(tileSize, n - from);
+
+            if (continuous && count == tileSize) {
+                samples.get(from, 0, buffer);
+            } else {
+                float[] row = rowBuffer.get();
+                for (int t = 0; t < count; t++) {
+                    samples.get(from + t, 0, row);
+                    System.arraycopy(row, 0, buffer, t * varCount, varCount);
+                }
+            }
+
+            predictTile(buffer, count, k, out, offset + from, returnDFVal);
+        }
+    }
+
+    /**
+     * Predicts classes of samples stored row by row in one array.
+     * @param samples       features of N samples
+     * @param n             number of samples
+     * @param out           buffer for results, new one is created if it is null or too small
+     * @param returnDFVal   return value of decision function instead of class (only for 2 classes)
+     * @return              predicted classes or decision values, first N items of buffer
+     */
+    public float[] predictBatch(float[] samples, int n, float[] out, boolean returnDFVal) {
+        if (samples.length < (long) n * varCount) {
+            throw new IllegalArgumentException("array has " + samples.length + " values, " + n + " samples need " + (long) n * varCount);
+        }
+
+        float[] results = out != null && out.length >= n ? out : new float[n];
+        float[] buffer = sampleBuffer.get();
+        float[] k = kernelBuffer.get();
+
+        for (int from = 0; from < n; from += tileSize) {
+            int count = Math.min(tileSize, n - from);
+            System.arraycopy(samples, from * varCount, buffer, 0, count * varCount);
+            predictTile(buffer, count, k, results, from, returnDFVal);
+        }
+
+        return results;
+    }
+
+    private void predictTile(float[] samples, int count, float[] k, float[] out, int offset, boolean returnDFVal) {
+        kernel(samples, 0, count, k);
+
+        for (int t = 0; t < count; t++) {
+            out[offset + t] = decide(k, t * svTotal, returnDFVal);
+        }
+    }
+
+    /**
+     * Sums weighted kernel values of decision functions and votes for class.
+     */
+    private float decide(float[] k, int offset, boolean returnDFVal) {
+        double[] rho = model.rho;
+        double[][] alpha = model.alpha;
+        int[][] index = model.index;
+        int classCount = model.classLabels.length;
+
+        if (classCount == 0) {
+            double sum = -rho[0];
+            double[] a = alpha[0];
+            int[] idx = index[0];
+
+            for (int i = 0; i < a.length; i++) {
+                sum += a[i] * k[offset + idx[i]];
+            }
+
+            return regression(sum);
+        }
+
+        int[] vote = new int[classCount];
+        double sum = 0;
+        int df = 0;
+
+        for (int i = 0; i < classCount; i++) {
+            for (int j = i + 1; j < classCount; j++, df++) {
+                double[] a = alpha[df];
+                int[] idx = index[df];
+                sum = -rho[df];
+
+                for (int s = 0; s < a.length; s++) {
+                    sum += a[s] * k[offset + idx[s]];
+                }
+
+                vote[sum > 0 ? i : j]++;
+            }
+        }
+
+        return classify(vote, sum, returnDFVal);
+    }
+
+    private float regression(double sum) {
+        return model.svmType == CvSVM.ONE_CLASS ? (sum > 0 ? 1 : 0) : (float) sum;
+    }
+
+    private float classify(int[] vote, double sum, boolean returnDFVal) {
+        int k = 0;
+        for (int i = 1; i < vote.length; i++) {
+            if (vote[i] > vote[k]) {
+                k = i;
+            }
+        }
+
+        return returnDFVal && vote.length == 2 ? (float) sum : model.classLabels[k];
+    }
+
+    /**
+     * Computes kernel values of samples and all support vectors, same as
+     * CvSVMKernel. Values of sample t start at t * svTotal.
+     */
+    void kernel(float[] samples, int offset, int count, float[] results) {
+        switch (model.kernelType) {
+            case CvSVM.LINEAR:
+                dots(samples, offset, count, results, 1, 0);
+                break;
+            case CvSVM.POLY:
+                dots(samples, offset, count, results, model.gamma, model.coef0);
+                for (int j = 0; j < count * svTotal; j++) {
+                    results[j] = pow(results[j], model.degree);
+                }
+                break;
+            case CvSVM.SIGMOID:
+                dots(samples, offset, count, results, -2 * model.gamma, -2 * model.coef0);
+                for (int j = 0; j < count * svTotal; j++) {
+                    float t = results[j];
+                    double e = Math.exp(-Math.abs(t));
+                    results[j] = t > 0 ? (float) ((1. - e) / (1. + e)) : (float) ((e - 1.) / (e + 1.));
+                }
+                break;
+            case CvSVM.RBF:
+                distances(samples, offset, count, results, -model.gamma);
+                for (int j = 0; j < count * svTotal; j++) {
+                    results[j] = (float) Math.exp(results[j]);
+                }
+                break;
+            default:
+                throw new IllegalStateException("unknown kernel " + model.kernelType);
+        }
+    }
+
+    /**
+     * Scalar products with all support vectors, summed in the same order as OpenCV.
+     */
+    private void dots(float[] samples, int offset, int count, float[] results, double alpha, double beta) {
+        float[] sv = supportVectors;
+        int n = varCount;
+
+        for (int j = 0; j < svTotal; j++) {
+            int base = j * n;
+
+            for (int t = 0; t < count; t++) {
+                int o = offset + t * n;
+                double s = 0;
+                int k = 0;
+
+                for (; k <= n - 4; k += 4) {
+                    s += sv[base + k] * samples[o + k] + sv[base + k + 1] * samples[o + k + 1]
+                            + sv[base + k + 2] * samples[o + k + 2] + sv[base + k + 3] * samples[o + k + 3];
+                }
+
+                for (; k < n; k++) {
+                    s += sv[base + k] * samples[o + k];
+                }
+
+                results[t * svTotal + j] = (float) (s * alpha + beta);
+            }
+        }
+    }
+
+    /**
+     * Squared distances to all support vectors multiplied by gamma, summed in the same order as OpenCV.
+     */
+    private void distances(float[] samples, int offset, int count, float[] results, double gamma) {
+        float[] sv = supportVectors;
+        int n = varCount;
+
+        for (int j = 0; j < svTotal; j++) {
+            int base = j * n;
+
+            for (int t = 0; t < count; t++) {
+                int o = offset + t * n;
+                double s = 0;
+                int k = 0;
+
+                for (; k <= n - 4; k += 4) {
+                    double t0 = sv[base + k] - samples[o + k];
+                    double t1 = sv[base + k + 1] - samples[o + k + 1];
+                    s += t0 * t0 + t1 * t1;
+                    t0 = sv[base + k + 2] - samples[o + k + 2];
+                    t1 = sv[base + k + 3] - samples[o + k + 3];
+                    s += t0 * t0 + t1 * t1;
+                }
+
+                for (; k < n; k++) {
+                    double t0 = sv[base + k] - samples[o + k];
+                    s += t0 * t0;
+                }
+
+                results[t * svTotal + j] = (float) (s * gamma);
+            }
+        }
+    }
+
+    /**
+     * Power of float, integer powers are computed by repeated squaring as in OpenCV.
+     */
+    static float pow(float b, double degree) {
+        int p = (int) degree;
+
+        if (p != degree || p < 0) {
+            return (float) Math.pow(b, degree);
+        }
+
+        if (p == 0) {
+            return 1;
+        }
+
+        float a = 1;
+
+        while (p > 1) {
+            if ((p & 1) != 0) {
+                a *= b;
+            }
+
+            b *= b;
+            p >>= 1;
+        }
+
+        return a * b;
+    }}
\ No newline at end of file
@@ -0,0 +1,339 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.opencv.ml.CvSVM;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+
+/**
+ * Parameters of trained SVM of OpenCV held in primitive arrays.
+ * 
+ * Model is read from XML file saved by CvSVM or from compact binary file
+ * created by ModelConverter. Binary file is memory-mapped and validated by
+ * CRC32 checksum. Model only holds parameters, prediction is done by
+ * SvmEngine created from it.
+ */
+public final class SvmModel {
+
+    private static final int MAGIC = 0x53564D42; // "SVMB"
+    private static final int VERSION = 1;
+
+    final int svmType;
+    final int kernelType;
+    final double degree;
+    final double gamma;
+    final double coef0;
+
+    final int varCount;
+    final int[] classLabels; // empty for regression and one class
+
+    // support vectors, row by row
+    final int svTotal;
+    final float[] supportVectors;
+
+    // decision functions
+    final double[] rho;
+    final double[][] alpha;
+    final int[][] index;
+
+    SvmModel(int svmType, int kernelType, double degree, double gamma, double coef0, int varCount,
+            int[] classLabels, int svTotal, float[] supportVectors, double[] rho, double[][] alpha, int[][] index) {
+        this.svmType = svmType;
+        this.kernelType = kernelType;
+        this.degree = degree;
+        this.gamma = gamma;
+        this.coef0 = coef0;
+        this.varCount = varCount;
+        this.classLabels = classLabels;
+        this.svTotal = svTotal;
+        this.supportVectors = supportVectors;
+        this.rho = rho;
+        this.alpha = alpha;
+        this.index = index;
+    }
+
+    /**
+     * Loads model from XML or binary file according to its extension.
+     * @param filename  path to model, binary models end with .bin
+     * @return          model
+     * @throws IOException 
+     */
+    public static SvmModel load(String filename) throws IOException {
+        return filename.endsWith(".bin") ? readBinary(new File(filename).toPath()) : readXml(new File(filename));
+    }
+
+    /**
+     * Number of features of one sample.
+     * @return  length of sample
+     */
+    public int varCount() {
+        return varCount;
+    }
+
+    /**
+     * Reads model from XML file saved by CvSVM.save.
+     * @param file  XML file
+     * @return      model
+     * @throws IOException 
+     */
+    public static SvmModel readXml(File file) throws IOException {
+        Document doc;
+
+        try {
+            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("model " + file + " can not be parsed", e);
+        }
+
+        Element svm = null;
+
+        for (Node n = doc.getDocumentElement().getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element && "opencv-ml-svm".equals(((Element) n).getAttribute("type_id"))) {
+                svm = (Element) n;
+                break;
+            }
+        }
+
+        if (svm == null) {
+            throw new IOException("file " + file + " does not contain SVM model");
+        }
+
+        if (child(svm, "var_idx") != null) {
+            throw new IOException("models trained on subset of variables are not supported");
+        }
+
+        int svmType = svmType(text(svm, "svm_type"));
+        Element kernel = child(svm, "kernel");
+        int kernelType = kernelType(text(kernel, "type"));
+        double degree = child(kernel, "degree") != null ? Double.parseDouble(text(kernel, "degree")) : 0;
+        double gamma = child(kernel, "gamma") != null ? Double.parseDouble(text(kernel, "gamma")) : 1;
+        double coef0 = child(kernel, "coef0") != null ? Double.parseDouble(text(kernel, "coef0")) : 0;
+
+        int varCount = Integer.parseInt(text(svm, "var_count"));
+        int classCount = child(svm, "class_count") != null ? Integer.parseInt(text(svm, "class_count")) : 0;
+        int svTotal = Integer.parseInt(text(svm, "sv_total"));
+
+        int[] classLabels = new int[classCount];
+        if (classCount > 0) {
+            String[] labels = numbers(text(child(svm, "class_labels"), "data"));
+            for (int i = 0; i < classCount; i++) {
+                classLabels[i] = (int) Double.parseDouble(labels[i]);
+            }
+        }
+
+        float[] supportVectors = new float[svTotal * varCount];
+        List<Element> svs = children(child(svm, "support_vectors"));
+        for (int i = 0; i < svTotal; i++) {
+            String[] values = numbers(svs.get(i).getTextContent());
+            for (int k = 0; k < varCount; k++) {
+                supportVectors[i * varCount + k] = Float.parseFloat(values[k]);
+            }
+        }
+
+        List<Element> dfs = children(child(svm, "decision_functions"));
+        double[] rho = new double[dfs.size()];
+        double[][] alpha = new double[dfs.size()][];
+        int[][] index = new int[dfs.size()][];
+
+        for (int d = 0; d < dfs.size(); d++) {
+            Element df = dfs.get(d);
+            int svCount = Integer.parseInt(text(df, "sv_count"));
+            rho[d] = Double.parseDouble(text(df, "rho"));
+            alpha[d] = new double[svCount];
+            index[d] = new int[svCount];
+
+            String[] a = numbers(text(df, "alpha"));
+            String[] idx = child(df, "index") != null ? numbers(text(df, "index")) : null;
+
+            for (int k = 0; k < svCount; k++) {
+                alpha[d][k] = Double.parseDouble(a[k]);
+                index[d][k] = idx != null ? Integer.parseInt(idx[k]) : k;
+            }
+        }
+
+        return new SvmModel(svmType, kernelType, degree, gamma, coef0, varCount, classLabels, svTotal, supportVectors, rho, alpha, index);
+    }
+
+    /**
+     * Writes model to compact binary file.
+     * @param file  output file
+     * @throws IOException 
+     */
+    public void writeBinary(Path file) throws IOException {
+        long size = 4 * 4 + 3 * 8 + 4 * 4 + 4L * classLabels.length + 4L * supportVectors.length + 8;
+
+        for (int d = 0; d < rho.length; d++) {
+            size += 4 + 8 + 12L * alpha[d].length;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(svmType).putInt(kernelType);
+        buf.putDouble(degree).putDouble(gamma).putDouble(coef0);
+        buf.putInt(varCount).putInt(classLabels.length).putInt(svTotal).putInt(rho.length);
+        buf.asIntBuffer().put(classLabels);
+        buf.position(buf.position() + 4 * classLabels.length);
+        buf.asFloatBuffer().put(supportVectors);
+        buf.position(buf.position() + 4 * supportVectors.length);
+
+        for (int d = 0; d < rho.length; d++) {
+            buf.putInt(alpha[d].length).putDouble(rho[d]);
+            buf.asDoubleBuffer().put(alpha[d]);
+            buf.position(buf.position() + 8 * alpha[d].length);
+            buf.asIntBuffer().put(index[d]);
+            buf.position(buf.position() + 4 * index[d].length);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putLong(crc.getValue());
+        buf.flip();
+
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        }
+    }
+
+    /**
+     * Reads model from binary file, file is memory-mapped and checksum is validated.
+     * @param file  binary file written by writeBinary
+     * @return      model
+     * @throws IOException 
+     */
+    public static SvmModel readBinary(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+
+            if (ch.size() < 8 + 8 || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                throw new IOException("file " + file + " is not binary SVM model");
+            }
+
+            ByteBuffer content = buf.duplicate();
+            content.position(0).limit((int) ch.size() - 8);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+
+            if (crc.getValue() != buf.getLong((int) ch.size() - 8)) {
+                throw new IOException("checksum of model " + file + " does not match");
+            }
+
+            int svmType = buf.getInt();
+            int kernelType = buf.getInt();
+            double degree = buf.getDouble();
+            double gamma = buf.getDouble();
+            double coef0 = buf.getDouble();
+            int varCount = buf.getInt();
+            int classCount = buf.getInt();
+            int svTotal = buf.getInt();
+            int dfCount = buf.getInt();
+
+            int[] classLabels = new int[classCount];
+            buf.asIntBuffer().get(classLabels);
+            buf.position(buf.position() + 4 * classCount);
+
+            float[] supportVectors = new float[svTotal * varCount];
+            buf.asFloatBuffer().get(supportVectors);
+            buf.position(buf.position() + 4 * supportVectors.length);
+
+            double[] rho = new double[dfCount];
+            double[][] alpha = new double[dfCount][];
+            int[][] index = new int[dfCount][];
+
+            for (int d = 0; d < dfCount; d++) {
+                int svCount = buf.getInt();
+                rho[d] = buf.getDouble();
+                alpha[d] = new double[svCount];
+                buf.asDoubleBuffer().get(alpha[d]);
+                buf.position(buf.position() + 8 * svCount);
+                index[d] = new int[svCount];
+                buf.asIntBuffer().get(index[d]);
+                buf.position(buf.position() + 4 * svCount);
+            }
+
+            return new SvmModel(svmType, kernelType, degree, gamma, coef0, varCount, classLabels, svTotal, supportVectors, rho, alpha, index);
+        } catch (RuntimeException e) {
+            throw new IOException("file " + file + " is damaged", e);
+        }
+    }
+
+    private static int svmType(String name) throws IOException {
+        switch (name) {
+            case "C_SVC":
+                return CvSVM.C_SVC;
+            case "NU_SVC":
+                return CvSVM.NU_SVC;
+            case "ONE_CLASS":
+                return CvSVM.ONE_CLASS;
+            case "EPS_SVR":
+                return CvSVM.EPS_SVR;
+            case "NU_SVR":
+                return CvSVM.NU_SVR;
+            default:
+                throw new IOException("unknown SVM type " + name);
+        }
+    }
+
+    private static int kernelType(String name) throws IOException {
+        switch (name) {
+            case "LINEAR":
+                return CvSVM.LINEAR;
+            case "POLY":
+                return CvSVM.POLY;
+            case "RBF":
+                return CvSVM.RBF;
+            case "SIGMOID":
+                return CvSVM.SIGMOID;
+            default:
+                throw new IOException("unknown kernel " + name);
+        }
+    }
+
+    private static Element child(Element parent, String name) {
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element && name.equals(n.getNodeName())) {
+                return (Element) n;
+            }
+        }
+
+        return null;
+    }
+
+    private static List<Element> children(Element parent) {
+        List<Element> result = new ArrayList<>();
+
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element) {
+                result.add((Element) n);
+            }
+        }
+
+        return result;
+    }
+
+    private static String text(Element parent, String name) throws IOException {
+        Element e = child(parent, name);
+
+        if (e == null) {
+            throw new IOException("element " + name + " is missing in model");
+        }
+
+        return e.getTextContent().trim();
+    }
+
+    private static String[] numbers(String text) {
+        return text.trim().split("\\s+");
+    }
+}
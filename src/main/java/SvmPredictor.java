@@ -0,0 +1,30 @@
+import org.opencv.core.Mat;
+
+
+/**
+ * Trained SVM able to classify samples. Implementations are read-only and
+ * can be shared between threads.
+ */
+public interface SvmPredictor {
+
+    /**
+     * Predicts class of sample.
+     * @param sample        sample of size 1 x D
+     * @param returnDFVal   return value of decision function instead of class (only for 2 classes)
+     * @return              predicted class or decision value
+     */
+    float predict(Mat sample, boolean returnDFVal);
+
+    /**
+     * Predicts classes of all rows of given matrix.
+     * @param samples       matrix of size N x D, one sample per row
+     * @param out           buffer for results
+     * @param offset        index of result of the first row
+     * @param returnDFVal   return value of decision function instead of class (only for 2 classes)
+     */
+    default void predictBatch(Mat samples, float[] out, int offset, boolean returnDFVal) {
+        for (int i = 0; i < samples.rows(); i++) {
+            out[offset + i] = predict(samples.row(i), returnDFVal);
+        }
+    }
+}
\ No newline at end of file
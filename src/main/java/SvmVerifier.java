@@ -0,0 +1,64 @@
+import java.io.File;
+import java.io.IOException;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.ml.CvSVM;
+
+
+/**
+ * Compares predictions of SvmEngine with CvSVM on verification set.
+ * 
+ * Usage: SvmVerifier model.xml data.csv
+ * 
+ * The first column of CSV file is ignored, other columns are features.
+ * Exits with status 1 if any predicted class differs.
+ */
+public class SvmVerifier {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: SvmVerifier <model.xml> <data.csv>");
+            System.exit(1);
+        }
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        CvSVM svm = new CvSVM();
+        svm.load(args[0]);
+        SvmEngine engine = new SvmEngine(SvmModel.readXml(new File(args[0])));
+
+        DataHandler dataHandler = new DataHandler();
+        Mat data = dataHandler.getData(dataHandler.readCsv(args[1])).clone();
+
+        int n = data.rows();
+        long nativeNanos = 0;
+        float[] expected = new float[n];
+        for (int i = 0; i < n; i++) {
+            long start = System.nanoTime();
+            expected[i] = svm.predict(data.row(i));
+            nativeNanos += System.nanoTime() - start;
+        }
+
+        long start = System.nanoTime();
+        float[] actual = new float[n];
+        engine.predictBatch(data, actual, 0, false);
+        long engineNanos = System.nanoTime() - start;
+
+        int mismatches = 0;
+        for (int i = 0; i < n; i++) {
+            if (expected[i] != actual[i]) {
+                if (mismatches < 10) {
+                    System.out.println("row " + i + ": CvSVM " + expected[i] + ", engine " + actual[i]);
+                }
+                mismatches++;
+            }
+        }
+
+        System.out.println(n + " samples, " + mismatches + " mismatches, CvSVM " + nativeNanos / 1000000
+                + " ms, engine " + engineNanos / 1000000 + " ms");
+
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+}
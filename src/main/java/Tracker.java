@@ -0,0 +1,326 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+
+/**
+ * Assigns persons detected in consecutive frames to persistent humans.
+ * 
+ * Detection is assigned to the nearest human within given distance, pairs
+ * are matched greedily from the closest one. Candidate pairs are searched
+ * in uniform grid with cells of size of the distance, so only humans in
+ * neighbouring cells are examined. Humans not detected for several frames
+ * are forgotten. With gallery of appearances, a detection which does not
+ * match any tracked human gets id of a forgotten human with similar
+ * appearance, if there is one.
+ * 
+ * Instance is not thread-safe.
+ */
+public class Tracker {
+
+    private final double maxDistance;
+    private final int maxMissed;
+    private final int history;
+
+    private final List<Human> humans = new ArrayList<>();
+    private int nextId = 0;
+
+    // re-identification
+    private AppearanceIndex gallery;
+    private float minSimilarity;
+    private long frame = 0;
+
+    // grid of humans, hash table of linked lists stored in arrays
+    private int[] heads = new int[64];
+    private int[] links = new int[16];
+    private long[] cellOf = new long[16];
+
+    // candidate pairs, distance and index of pair packed to sort them as longs
+    private long[] pairs = new long[64];
+    private int[] pairDetection = new int[64];
+    private int[] pairHuman = new int[64];
+
+    private boolean[] humanMatched = new boolean[16];
+    private boolean[] detectionMatched = new boolean[16];
+
+    /**
+     * @param maxDistance   maximal distance of detection from last position of human
+     * @param maxMissed     number of frames after which not detected human is forgotten
+     * @param history       number of remembered positions of every human
+     */
+    public Tracker(double maxDistance, int maxMissed, int history) {
+        if (maxDistance <= 0) {
+            throw new IllegalArgumentException("maximal distance must be positive");
+        }
+
+        if (history <= 0) {
+            throw new IllegalArgumentException("history must be positive");
+        }
+
+        this.maxDistance = maxDistance;
+        this.maxMissed = maxMissed;
+        this.history = history;
+    }
+
+    /**
+     * Re-identifies humans returning to scene by appearance. Features of all
+     * detections are stored in gallery under ids of assigned humans.
+     * @param gallery           gallery of appearances
+     * @param minSimilarity     minimal cosine similarity of the same human
+     * @return                  this tracker
+     */
+    public Tracker reid(AppearanceIndex gallery, float minSimilarity) {
+        this.gallery = gallery;
+        this.minSimilarity = minSimilarity;
+        return this;
+    }
+
+    /**
+     * Humans tracked at the moment.
+     * @return  unmodifiable list of humans
+     */
+    public List<Human> humans() {
+        return Collections.unmodifiableList(humans);
+    }
+
+    /**
+     * Processes detections of one frame, centers of rectangles are used as positions.
+     * @param detections    detections found by Recognizer.detect
+     * @return              human assigned to every detection
+     */
+    public Human[] update(List<Detection> detections) {
+        int n = detections.size();
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+
+        for (int i = 0; i < n; i++) {
+            Rect r = detections.get(i).rect;
+            xs[i] = r.x + r.width / 2.0;
+            ys[i] = r.y + r.height / 2.0;
+        }
+
+        return update(xs, ys, n, detections);
+    }
+
+    /**
+     * Processes one position, e.g. head found by Recognizer.detectHead.
+     * @param p     position
+     * @return      human assigned to the position
+     */
+    public Human update(Point p) {
+        return update(new double[] {p.x}, new double[] {p.y}, 1)[0];
+    }
+
+    /**
+     * Processes positions detected in one frame.
+     * @param xs    x coordinates
+     * @param ys    y coordinates
+     * @param n     number of positions
+     * @return      human assigned to every position
+     */
+    public Human[] update(double[] xs, double[] ys, int n) {
+        return update(xs, ys, n, null);
+    }
+
+    /**
+     * Processes positions detected in one frame.
+     * @param xs            x coordinates
+     * @param ys            y coordinates
+     * @param n             number of positions
+     * @param detections    detections with features for re-identification, may be null
+     * @return              human assigned to every position
+     */
+    private Human[] update(double[] xs, double[] ys, int n, List<Detection> detections) {
+        frame++;
+        int m = humans.size();
+        buildGrid();
+
+        detectionMatched = ensure(detectionMatched, n);
+        humanMatched = ensure(humanMatched, m);
+        Arrays.fill(detectionMatched, 0, n, false);
+        Arrays.fill(humanMatched, 0, m, false);
+
+        // find all pairs closer than maximal distance
+        int count = 0;
+        double maxSquare = maxDistance * maxDistance;
+
+        for (int d = 0; d < n; d++) {
+            long cx = cell(xs[d]);
+            long cy = cell(ys[d]);
+
+            for (long gy = cy - 1; gy <= cy + 1; gy++) {
+                for (long gx = cx - 1; gx <= cx + 1; gx++) {
+                    long key = key(gx, gy);
+
+                    for (int h = heads[slot(key)]; h >= 0; h = links[h]) {
+                        if (cellOf[h] != key) {
+                            continue;
+                        }
+
+                        Human human = humans.get(h);
+                        double dx = human.getX() - xs[d];
+                        double dy = human.getY() - ys[d];
+                        double square = dx * dx + dy * dy;
+
+                        if (square <= maxSquare) {
+                            if (count == pairDetection.length) {
+                                pairs = Arrays.copyOf(pairs, count * 2);
+                                pairDetection = Arrays.copyOf(pairDetection, count * 2);
+                                pairHuman = Arrays.copyOf(pairHuman, count * 2);
+                            }
+
+                            // non-negative floats keep their order as bits
+                            pairs[count] = ((long) Float.floatToIntBits((float) square) << 32) | count;
+                            pairDetection[count] = d;
+                            pairHuman[count] = h;
+                            count++;
+                        }
+                    }
+                }
+            }
+        }
+
+        // match the closest pairs first
+        Arrays.sort(pairs, 0, count);
+        Human[] assigned = new Human[n];
+
+        for (int i = 0; i < count; i++) {
+            int pair = (int) pairs[i];
+            int d = pairDetection[pair];
+            int h = pairHuman[pair];
+
+            if (!detectionMatched[d] && !humanMatched[h]) {
+                detectionMatched[d] = true;
+                humanMatched[h] = true;
+                assigned[d] = humans.get(h);
+                assigned[d].addPosition(xs[d], ys[d]);
+            }
+        }
+
+        // forget humans which are not detected for long time
+        int kept = 0;
+
+        for (int h = 0; h < m; h++) {
+            Human human = humans.get(h);
+
+            if (!humanMatched[h]) {
+                human.miss();
+            }
+
+            if (human.missed() <= maxMissed) {
+                humans.set(kept++, human);
+            }
+        }
+
+        humans.subList(kept, m).clear();
+
+        // new humans from unmatched detections
+        boolean reid = gallery != null && detections != null;
+        Set<Integer> tracked = new HashSet<>();
+
+        if (reid) {
+            for (Human human : humans) {
+                tracked.add(human.getId());
+            }
+        }
+
+        for (int d = 0; d < n; d++) {
+            if (!detectionMatched[d]) {
+                int id = reid ? returning(detections.get(d), tracked) : -1;
+                assigned[d] = new Human(id >= 0 ? id : nextId++, xs[d], ys[d], history);
+                humans.add(assigned[d]);
+                tracked.add(assigned[d].getId());
+            }
+        }
+
+        // remember appearance of all detections
+        if (reid) {
+            for (int d = 0; d < n; d++) {
+                if (detections.get(d).features != null) {
+                    gallery.put(assigned[d].getId(), detections.get(d), frame);
+                }
+            }
+        }
+
+        return assigned;
+    }
+
+    /**
+     * Finds human which is not tracked now and looks like detection.
+     * @param detection     detection with features
+     * @param tracked       ids of tracked humans
+     * @return              id of human or -1
+     */
+    private int returning(Detection detection, Set<Integer> tracked) {
+        if (detection.features == null) {
+            return -1;
+        }
+
+        for (AppearanceIndex.Match match : gallery.query(detection, tracked.size() + 1)) {
+            if (match.similarity < minSimilarity) {
+                break;
+            }
+
+            if (!tracked.contains(match.id)) {
+                return match.id;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Puts all humans to grid according to their last position.
+     */
+    private void buildGrid() {
+        int m = humans.size();
+
+        if (heads.length < m * 2) {
+            heads = new int[Integer.highestOneBit(m * 2) * 2];
+        }
+
+        links = ensure(links, m);
+        cellOf = ensure(cellOf, m);
+        Arrays.fill(heads, -1);
+
+        for (int h = 0; h < m; h++) {
+            Human human = humans.get(h);
+            long key = key(cell(human.getX()), cell(human.getY()));
+            int slot = slot(key);
+
+            cellOf[h] = key;
+            links[h] = heads[slot];
+            heads[slot] = h;
+        }
+    }
+
+    private long cell(double v) {
+        return (long) Math.floor(v / maxDistance);
+    }
+
+    private static long key(long gx, long gy) {
+        return (gx << 32) ^ (gy & 0xFFFFFFFFL);
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40) & (heads.length - 1);
+    }
+
+    private static int[] ensure(int[] a, int n) {
+        return a.length >= n ? a : new int[Math.max(n, a.length * 2)];
+    }
+
+    private static long[] ensure(long[] a, int n) {
+        return a.length >= n ? a : new long[Math.max(n, a.length * 2)];
+    }
+
+    private static boolean[] ensure(boolean[] a, int n) {
+        return a.length >= n ? a : new boolean[Math.max(n, a.length * 2)];
+    }
+}
@@ -0,0 +1,314 @@
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+
+/**
+ * Builds training data from directory of images on several threads.
+ * 
+ * Output matrix is allocated once, workers copy stored features of their
+ * own slices of rows, then they compute features of images streamed by
+ * DatasetReader. Rows are in the order of given file names, so the
+ * result does not depend on the number of workers.
+ */
+public class TrainingSetBuilder {
+
+    /**
+     * Receives progress of the build. Methods are called from worker threads.
+     */
+    public interface Listener {
+
+        /**
+         * Called after every processed image.
+         * @param done              number of processed images
+         * @param total             number of all images
+         * @param imagesPerSecond   throughput since start of the build
+         */
+        void progress(int done, int total, double imagesPerSecond);
+
+        /**
+         * Called for every image which is not used for training.
+         * @param file      image file
+         * @param reason    description of the problem
+         */
+        void skipped(File file, String reason);
+    }
+
+    /**
+     * Features and labels of training images.
+     */
+    public static class TrainingSet {
+        public final Mat data;
+        public final Mat labels;
+        public final List<File> images;
+
+        TrainingSet(Mat data, Mat labels, List<File> images) {
+            this.data = data;
+            this.labels = labels;
+            this.images = images;
+        }
+    }
+
+    private static final Listener DEFAULT_LISTENER = new Listener() {
+        @Override
+        public void progress(int done, int total, double imagesPerSecond) {
+        }
+
+        @Override
+        public void skipped(File file, String reason) {
+            System.err.println("skipping " + file + ": " + reason);
+        }
+    };
+
+    private final Recognizer recognizer;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private Listener listener = DEFAULT_LISTENER;
+
+    // reading of images which are not in feature store
+    private int ioThreads = 8;
+    private int decoders = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int prefetch = 64;
+
+    public TrainingSetBuilder(Recognizer recognizer) {
+        this.recognizer = recognizer;
+    }
+
+    /**
+     * Sets number of worker threads.
+     * @param workers   number of threads
+     * @return          this builder
+     */
+    public TrainingSetBuilder workers(int workers) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("workers must be positive");
+        }
+
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * Sets reading of images ahead of feature extraction.
+     * @param ioThreads     number of threads reading files
+     * @param decoders      number of threads decoding images
+     * @param prefetch      maximum number of images read ahead
+     * @return              this builder
+     */
+    public TrainingSetBuilder reader(int ioThreads, int decoders, int prefetch) {
+        if (ioThreads <= 0 || decoders <= 0 || prefetch <= 0) {
+            throw new IllegalArgumentException("threads and prefetch must be positive");
+        }
+
+        this.ioThreads = ioThreads;
+        this.decoders = decoders;
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    /**
+     * Sets receiver of progress and skipped images.
+     * @param listener  listener
+     * @return          this builder
+     */
+    public TrainingSetBuilder listener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Computes features of all given images. Label of image is the first
+     * character of its file name. Features found in store are copied first,
+     * other images are read and decoded ahead of feature extraction.
+     * @param dir       path to directory with training data
+     * @param names     file names of images
+     * @param store     features computed by previous runs
+     * @return          training set without skipped images
+     */
+    public TrainingSet build(String dir, List<String> names, FeatureStore store) {
+        int total = names.size();
+        int featureLength = recognizer.hogExtractor().length();
+        boolean useStore = store.featureLength() == featureLength;
+
+        Mat data = new Mat(total, featureLength, CvType.CV_32FC1);
+        float[] labels = new float[total];
+        boolean[] valid = new boolean[total];
+        boolean[] pending = new boolean[total];
+
+        AtomicInteger done = new AtomicInteger();
+        long start = System.nanoTime();
+
+        // few slices per worker to balance uneven times
+        int sliceSize = Math.max(1, (total + workers * 4 - 1) / (workers * 4));
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+
+        try {
+            // labels and stored features
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int from = 0; from < total; from += sliceSize) {
+                int begin = from;
+                int end = Math.min(total, from + sliceSize);
+
+                futures.add(pool.submit(() -> {
+                    float[] stored = new float[featureLength];
+
+                    for (int i = begin; i < end; i++) {
+                        String f = names.get(i);
+                        File file = new File(dir, f);
+
+                        try {
+                            labels[i] = Float.parseFloat(f.substring(0, 1));
+                        } catch (RuntimeException e) {
+                            listener.skipped(file, e.toString());
+                            progress(done, total, start);
+                            continue;
+                        }
+
+                        if (useStore && store.read(file, stored)) {
+                            valid[i] = putRow(data, i, stored);
+                            progress(done, total, start);
+                        } else {
+                            pending[i] = true;
+                        }
+                    }
+                }));
+            }
+
+            await(futures);
+
+            // features of new and changed images
+            List<Path> paths = new ArrayList<>();
+            List<Integer> rows = new ArrayList<>();
+
+            for (int i = 0; i < total; i++) {
+                if (pending[i]) {
+                    paths.add(new File(dir, names.get(i)).toPath());
+                    rows.add(i);
+                }
+            }
+
+            if (!paths.isEmpty()) {
+                try (DatasetReader reader = new DatasetReader(paths, ioThreads, decoders, prefetch)) {
+                    futures.clear();
+
+                    for (int w = 0; w < workers; w++) {
+                        futures.add(pool.submit(() -> {
+                            DatasetReader.Item item;
+
+                            while ((item = reader.take()) != null) {
+                                int row = rows.get(item.index);
+
+                                try {
+                                    valid[row] = computeRow(data, row, item);
+                                } catch (RuntimeException e) {
+                                    listener.skipped(item.path.toFile(), e.toString());
+                                }
+
+                                progress(done, total, start);
+                            }
+
+                            return null;
+                        }));
+                    }
+
+                    await(futures);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("building of training set interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("building of training set failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return compact(dir, names, data, labels, valid);
+    }
+
+    private void progress(AtomicInteger done, int total, long start) {
+        int n = done.incrementAndGet();
+        listener.progress(n, total, n * 1e9 / (System.nanoTime() - start));
+    }
+
+    private static void await(List<Future<?>> futures) throws InterruptedException, ExecutionException {
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private boolean putRow(Mat data, int row, float[] stored) {
+        data.put(row, 0, stored);
+        return true;
+    }
+
+    private boolean computeRow(Mat data, int row, DatasetReader.Item item) {
+        File file = item.path.toFile();
+
+        if (item.image == null) {
+            listener.skipped(file, item.error);
+            return false;
+        }
+
+        Mat img = item.image;
+
+        try {
+            RecognizerConfig config = recognizer.config();
+
+            if (img.rows() != config.paddHeightMax || img.cols() != config.paddWidthMax) {
+                listener.skipped(file, "image size " + img.cols() + "x" + img.rows() + " differs from "
+                        + config.paddWidthMax + "x" + config.paddHeightMax);
+                return false;
+            }
+
+            recognizer.hogExtractor().compute(img, data, row);
+            return true;
+        } finally {
+            img.release();
+        }
+    }
+
+    /**
+     * Removes rows of skipped images, order of remaining rows is kept.
+     */
+    private TrainingSet compact(String dir, List<String> names, Mat data, float[] labels, boolean[] valid) {
+        List<File> images = new ArrayList<>();
+        List<Integer> rows = new ArrayList<>();
+
+        for (int i = 0; i < valid.length; i++) {
+            if (valid[i]) {
+                rows.add(i);
+                images.add(new File(dir, names.get(i)));
+            }
+        }
+
+        Mat out = data;
+
+        if (rows.size() < valid.length) {
+            out = new Mat(rows.size(), data.cols(), CvType.CV_32FC1);
+
+            for (int i = 0; i < rows.size(); i++) {
+                data.row(rows.get(i)).copyTo(out.row(i));
+            }
+
+            data.release();
+        }
+
+        Mat outLabels = new Mat(rows.size(), 1, CvType.CV_32FC1);
+
+        for (int i = 0; i < rows.size(); i++) {
+            outLabels.put(i, 0, labels[rows.get(i)]);
+        }
+
+        return new TrainingSet(out, outLabels, images);
+    }
+}